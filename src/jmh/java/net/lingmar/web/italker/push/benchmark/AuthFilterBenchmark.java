@@ -0,0 +1,56 @@
+package net.lingmar.web.italker.push.benchmark;
+
+import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.provider.AuthRequestFilter;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求鉴权过滤器的性能测试
+ * 已登录的Token走缓存，未知的Token每次都需要查询数据库
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthFilterBenchmark {
+    private static final URI BASE_URI = URI.create("http://127.0.0.1/api/");
+    private static final URI REQUEST_URI = URI.create("http://127.0.0.1/api/user/contact");
+
+    private final AuthRequestFilter filter = new AuthRequestFilter();
+    private String token;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchEnvironment.init();
+
+        User user = BenchEnvironment.createUser();
+        token = user.getToken();
+    }
+
+    @Benchmark
+    public ContainerRequest knownToken() throws IOException {
+        return filter(token);
+    }
+
+    @Benchmark
+    public ContainerRequest unknownToken() throws IOException {
+        return filter(UUID.randomUUID().toString());
+    }
+
+    private ContainerRequest filter(String token) throws IOException {
+        ContainerRequest request = new ContainerRequest(BASE_URI, REQUEST_URI,
+                "GET", null, new MapPropertiesDelegate());
+        request.header("token", token);
+        filter.filter(request);
+        return request;
+    }
+}
@@ -0,0 +1,99 @@
+package net.lingmar.web.italker.push.benchmark;
+
+import net.lingmar.web.italker.push.bean.api.group.GroupCreateModel;
+import net.lingmar.web.italker.push.bean.db.Group;
+import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.factory.GroupFactory;
+import net.lingmar.web.italker.push.factory.UserFactory;
+import net.lingmar.web.italker.push.utils.PushDispatcher;
+
+import javax.ws.rs.core.SecurityContext;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 性能测试的运行环境
+ * 使用内嵌的H2数据库和模拟的推送服务，不依赖外部的MySQL与个推服务器
+ */
+public class BenchEnvironment {
+    private static boolean initialized;
+
+    /**
+     * 初始化数据库与推送服务，必须在第一次使用Hib之前调用
+     */
+    public static synchronized void init() {
+        if (initialized)
+            return;
+
+        System.setProperty("italker.hibernate.config", "hibernate-jmh.cfg.xml");
+        PushDispatcher.setPusherFactory(StubGtPush::new);
+
+        initialized = true;
+    }
+
+    /**
+     * 注册一个新用户，并完善用户信息
+     *
+     * @return 已登录的用户
+     */
+    public static User createUser() {
+        String random = UUID.randomUUID().toString().replace("-", "");
+        User user = UserFactory.register(random.substring(0, 20), "123456", random);
+        user.setPortrait("portrait");
+        user.setDescription("description");
+        user.setPushId(random);
+        return UserFactory.update(user);
+    }
+
+    /**
+     * 创建一个群
+     *
+     * @param owner   创建者
+     * @param members 除创建者外的成员数量
+     * @return 群
+     */
+    public static Group createGroup(User owner, int members) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            users.add(createUser());
+        }
+
+        GroupCreateModel model = new GroupCreateModel();
+        model.setName(UUID.randomUUID().toString());
+        model.setDesc("description");
+        model.setPicture("picture");
+        return GroupFactory.create(owner, model, users);
+    }
+
+    /**
+     * 构建一个当前登录用户的上下文
+     *
+     * @param self 当前用户
+     * @return SecurityContext
+     */
+    public static SecurityContext securityContext(User self) {
+        return new SecurityContext() {
+            @Override
+            public Principal getUserPrincipal() {
+                return self;
+            }
+
+            @Override
+            public boolean isUserInRole(String role) {
+                return false;
+            }
+
+            @Override
+            public boolean isSecure() {
+                return false;
+            }
+
+            @Override
+            public String getAuthenticationScheme() {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package net.lingmar.web.italker.push.benchmark;
+
+import com.google.gson.reflect.TypeToken;
+import net.lingmar.web.italker.push.bean.api.message.MessageCreateModel;
+import net.lingmar.web.italker.push.bean.card.MessageCard;
+import net.lingmar.web.italker.push.bean.card.UserCard;
+import net.lingmar.web.italker.push.bean.db.Message;
+import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.provider.GsonProvider;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 返回数据Json序列化的性能测试
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GsonProviderBenchmark {
+    private static final Type MESSAGE_CARDS = new TypeToken<List<MessageCard>>() {
+    }.getType();
+    private static final Type USER_CARDS = new TypeToken<List<UserCard>>() {
+    }.getType();
+    private static final Annotation[] ANNOTATIONS = new Annotation[0];
+
+    @Param({"20", "200"})
+    public int size;
+
+    private final GsonProvider<Object> provider = new GsonProvider<>();
+    private final OutputStream output = new DiscardOutputStream();
+    private List<MessageCard> messageCards;
+    private List<UserCard> userCards;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchEnvironment.init();
+
+        User sender = BenchEnvironment.createUser();
+        User receiver = BenchEnvironment.createUser();
+
+        messageCards = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            MessageCreateModel model = new MessageCreateModel();
+            model.setId(UUID.randomUUID().toString());
+            model.setContent("benchmark message " + i);
+            model.setReceiverId(receiver.getId());
+            messageCards.add(new MessageCard(new Message(sender, receiver, model)));
+        }
+
+        userCards = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            userCards.add(new UserCard(i % 2 == 0 ? sender : receiver, true));
+        }
+    }
+
+    @Benchmark
+    public void writeMessageCards() throws IOException {
+        provider.writeTo(messageCards, List.class, MESSAGE_CARDS, ANNOTATIONS,
+                MediaType.APPLICATION_JSON_TYPE, null, output);
+    }
+
+    @Benchmark
+    public void writeUserCards() throws IOException {
+        provider.writeTo(userCards, List.class, USER_CARDS, ANNOTATIONS,
+                MediaType.APPLICATION_JSON_TYPE, null, output);
+    }
+
+    // 丢弃所有写入的数据，只测量序列化本身
+    private static class DiscardOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+
+        @Override
+        public void close() {
+            // 序列化完成后会关闭输出流，这里需要继续复用
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.lingmar.web.italker.push.benchmark;
+
+import net.lingmar.web.italker.push.bean.api.base.ResponseModel;
+import net.lingmar.web.italker.push.bean.api.message.MessageCreateModel;
+import net.lingmar.web.italker.push.bean.db.Group;
+import net.lingmar.web.italker.push.bean.db.Message;
+import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.service.MessageService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发送消息接口的性能测试，包括发给人和发给群
+ * 推送在后台队列中完成，这里测量的是请求线程的耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageSendBenchmark {
+    @Param({"10", "100"})
+    public int groupSize;
+
+    private User receiver;
+    private Group group;
+    private Service service;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchEnvironment.init();
+
+        User sender = BenchEnvironment.createUser();
+        receiver = BenchEnvironment.createUser();
+        group = BenchEnvironment.createGroup(sender, groupSize);
+        service = new Service(sender);
+    }
+
+    @Benchmark
+    public ResponseModel<?> sendToUser() {
+        return service.send(receiver.getId(), Message.RECEIVER_TYPE_NONE);
+    }
+
+    @Benchmark
+    public ResponseModel<?> sendToGroup() {
+        return service.send(group.getId(), Message.RECEIVER_TYPE_GROUP);
+    }
+
+    // 以指定用户的身份调用发送接口
+    private static class Service extends MessageService {
+        Service(User self) {
+            securityContext = BenchEnvironment.securityContext(self);
+        }
+
+        ResponseModel<?> send(String receiverId, int receiverType) {
+            MessageCreateModel model = new MessageCreateModel();
+            model.setId(UUID.randomUUID().toString());
+            model.setContent("benchmark message");
+            model.setReceiverId(receiverId);
+            model.setReceiverType(receiverType);
+            return login(model);
+        }
+    }
+}
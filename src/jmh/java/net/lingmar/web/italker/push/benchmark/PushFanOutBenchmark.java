@@ -0,0 +1,49 @@
+package net.lingmar.web.italker.push.benchmark;
+
+import net.lingmar.web.italker.push.bean.api.message.MessageCreateModel;
+import net.lingmar.web.italker.push.bean.db.Group;
+import net.lingmar.web.italker.push.bean.db.Message;
+import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.factory.MessageFactory;
+import net.lingmar.web.italker.push.factory.PushFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 群消息推送扩散的性能测试，测量一条消息推送给N个群成员的耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushFanOutBenchmark {
+    @Param({"10", "100", "500"})
+    public int members;
+
+    private User sender;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchEnvironment.init();
+
+        sender = BenchEnvironment.createUser();
+        Group group = BenchEnvironment.createGroup(sender, members);
+
+        MessageCreateModel model = new MessageCreateModel();
+        model.setId(UUID.randomUUID().toString());
+        model.setContent("benchmark message");
+        model.setReceiverId(group.getId());
+        model.setReceiverType(Message.RECEIVER_TYPE_GROUP);
+        message = MessageFactory.add(sender, group, model);
+    }
+
+    @Benchmark
+    public void pushNewMessage() {
+        PushFactory.pushNewMessage(sender, message);
+    }
+}
@@ -0,0 +1,36 @@
+package net.lingmar.web.italker.push.benchmark;
+
+import com.gexin.rp.sdk.base.IBatch;
+import com.gexin.rp.sdk.base.IPushResult;
+import com.gexin.rp.sdk.http.IGtPush;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 模拟的个推客户端，批量提交时不发起网络请求，直接返回成功
+ */
+public class StubGtPush extends IGtPush {
+    private static final Map<String, Object> RESPONSE = Collections.singletonMap("result", "ok");
+
+    public StubGtPush() {
+        super("http://127.0.0.1/apiex.htm", "appKey", "masterSecret");
+    }
+
+    @Override
+    public IBatch getBatch() {
+        IPushResult result = (IPushResult) Proxy.newProxyInstance(IPushResult.class.getClassLoader(),
+                new Class<?>[]{IPushResult.class},
+                (proxy, method, args) -> "getResponse".equals(method.getName()) ? RESPONSE : null);
+
+        return (IBatch) Proxy.newProxyInstance(IBatch.class.getClassLoader(),
+                new Class<?>[]{IBatch.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if ("submit".equals(name) || "retry".equals(name))
+                        return result;
+                    return null;
+                });
+    }
+}
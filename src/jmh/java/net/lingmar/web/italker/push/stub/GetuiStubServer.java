@@ -0,0 +1,179 @@
+package net.lingmar.web.italker.push.stub;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 本地模拟的个推服务器，用于压测推送链路
+ * 接收IGtPush/IBatch发出的请求，按action返回对应的应答：
+ * connect返回鉴权Token，其他请求（批量推送等）返回成功
+ * <p>
+ * 启动：gradle pushStub -PstubArgs="--port=8090 --latency=50 --jitter=20 --errorRate=0.01 --maxRps=200"
+ * 服务端配置：-Ditalker.push.host=http://127.0.0.1:8090/apiex.htm
+ * <p>
+ * 参数：
+ * --port       监听端口，默认8090
+ * --latency    每个请求的固定延迟，毫秒，默认0
+ * --jitter     在固定延迟上增加的随机延迟上限，毫秒，默认0
+ * --errorRate  返回失败的比例，0～1，默认0
+ * --maxRps     每秒最多处理的请求数，超过后请求排队等待，默认不限制
+ * --threads    处理请求的线程数，默认64
+ * --report     统计输出的间隔，秒，默认5
+ */
+public class GetuiStubServer {
+    private final long latency;
+    private final long jitter;
+    private final double errorRate;
+    private final RateLimiter limiter;
+
+    // 收到的请求数
+    private final AtomicLong requests = new AtomicLong();
+    // 请求中包含的推送消息数
+    private final AtomicLong messages = new AtomicLong();
+    // 返回失败的请求数
+    private final AtomicLong errors = new AtomicLong();
+
+    public GetuiStubServer(long latency, long jitter, double errorRate, double maxRps) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+        this.limiter = maxRps > 0 ? RateLimiter.create(maxRps) : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parse(args);
+        int port = Integer.parseInt(options.getOrDefault("port", "8090"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+        long report = Long.parseLong(options.getOrDefault("report", "5"));
+
+        GetuiStubServer stub = new GetuiStubServer(
+                Long.parseLong(options.getOrDefault("latency", "0")),
+                Long.parseLong(options.getOrDefault("jitter", "0")),
+                Double.parseDouble(options.getOrDefault("errorRate", "0")),
+                Double.parseDouble(options.getOrDefault("maxRps", "0")));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/", stub::handle);
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("Getui stub listening on http://127.0.0.1:" + port + "/apiex.htm");
+
+        Executors.newSingleThreadScheduledExecutor()
+                .scheduleAtFixedRate(stub.reporter(report), report, report, TimeUnit.SECONDS);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                continue;
+            int index = arg.indexOf('=');
+            options.put(arg.substring(2, index), arg.substring(index + 1));
+        }
+        return options;
+    }
+
+    // 周期性输出吞吐量
+    private Runnable reporter(long seconds) {
+        long[] last = new long[3];
+        return () -> {
+            long r = requests.get(), m = messages.get(), e = errors.get();
+            System.out.println(String.format("requests %.1f/s, messages %.1f/s, errors %.1f/s (total %d/%d/%d)",
+                    (r - last[0]) / (double) seconds,
+                    (m - last[1]) / (double) seconds,
+                    (e - last[2]) / (double) seconds,
+                    r, m, e));
+            last[0] = r;
+            last[1] = m;
+            last[2] = e;
+        };
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (limiter != null)
+                limiter.acquire();
+
+            JsonObject request = readBody(exchange);
+            requests.incrementAndGet();
+            messages.addAndGet(countMessages(request));
+
+            long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+            if (delay > 0)
+                Thread.sleep(delay);
+
+            JsonObject response = new JsonObject();
+            String action = request.has("action") ? request.get("action").getAsString() : "";
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                response.addProperty("result", "other_error");
+            } else if ("connect".equals(action)) {
+                response.addProperty("result", "success");
+                response.addProperty("authtoken", UUID.randomUUID().toString());
+            } else {
+                response.addProperty("result", "ok");
+                response.addProperty("taskId", UUID.randomUUID().toString());
+                response.addProperty("status", "successed_online");
+            }
+
+            byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // 读取请求体，SDK可能会对请求体进行Gzip压缩
+    private JsonObject readBody(HttpExchange exchange) throws IOException {
+        InputStream input = new BufferedInputStream(exchange.getRequestBody());
+        input.mark(2);
+        int first = input.read();
+        int second = input.read();
+        input.reset();
+        if (first == 0x1f && second == 0x8b)
+            input = new GZIPInputStream(input);
+
+        try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+            JsonElement element = new JsonParser().parse(reader);
+            return element != null && element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+        } catch (Exception e) {
+            return new JsonObject();
+        }
+    }
+
+    // 批量请求中每条推送是一个数组元素，取最大的数组长度作为消息数量
+    private int countMessages(JsonObject request) {
+        int count = 0;
+        for (Entry<String, JsonElement> entry : request.entrySet()) {
+            if (entry.getValue().isJsonArray())
+                count = Math.max(count, entry.getValue().getAsJsonArray().size());
+        }
+        return request.has("action") && count == 0 && !"connect".equals(request.get("action").getAsString()) ? 1 : count;
+    }
+}
@@ -0,0 +1,2 @@
+-- 建表之后执行：H2 会把写入BLOB列的字符串当作十六进制解析，测试库中改为CLOB存储Json
+alter table TB_PUSH_HISTORY alter column entity clob;
@@ -1,7 +1,10 @@
 package net.lingmar.web.italker.push;
 
 import net.lingmar.web.italker.push.provider.AuthRequestFilter;
+import net.lingmar.web.italker.push.provider.ETagFilter;
 import net.lingmar.web.italker.push.provider.GsonProvider;
+import net.lingmar.web.italker.push.provider.LifecycleListener;
+import net.lingmar.web.italker.push.provider.UnitOfWorkFilter;
 import net.lingmar.web.italker.push.service.AccountService;
 import org.glassfish.jersey.server.ResourceConfig;
 
@@ -13,13 +16,22 @@ public class Application extends ResourceConfig {
         // 注册逻辑处理的包名
         packages(AccountService.class.getPackage().getName());
 
+        // 注册请求的工作单元，一个请求共用一个数据库事务
+        register(UnitOfWorkFilter.class);
+
         // 注册全局请求拦截器
         register(AuthRequestFilter.class);
 
+        // 注册ETag的写入，用于条件请求
+        register(ETagFilter.class);
+
         // 注册Json解析器
         // register(JacksonJsonProvider.class);
         register(GsonProvider.class);
 
+        // 注册容器生命周期监听，用于释放后台资源
+        register(LifecycleListener.class);
+
         // 注册日志打印输出
         register(Logger.class);
 
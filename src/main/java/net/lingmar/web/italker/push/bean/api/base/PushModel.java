@@ -11,6 +11,9 @@ import java.util.List;
  * 一个推送的具体Model，内部维持了一个数组，可以添加多个实体
  * 每次推送的详细数据是：把实体数组进行Json操作，然后发送Json字符串
  * 这样做的目的是：减少多次推送，如果有多个消息需要推送可以合并进行
+ * <p>
+ * 每个实体只序列化一次并缓存结果，同一条消息发给多个接收者时共用同一个实体，
+ * 拼接推送字符串时不再重复序列化
  *
  * @author qiujuer Email:qiujuer.live.cn
  */
@@ -37,10 +40,21 @@ public class PushModel {
         return add(new Entity(type, content));
     }
 
+    public List<Entity> getEntities() {
+        return entities;
+    }
+
     public String getPushString() {
         if (entities.size() == 0)
             return null;
-        return TextUtil.toJson(entities);
+        // 直接拼接每个实体缓存的Json，和序列化整个数组的结果一致
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < entities.size(); i++) {
+            if (i > 0)
+                builder.append(',');
+            builder.append(entities.get(i).toJson());
+        }
+        return builder.append(']').toString();
     }
 
     /**
@@ -48,6 +62,11 @@ public class PushModel {
      * 比如添加好友的推送：
      * content：用户信息的Json字符串
      * type=ENTITY_TYPE_ADD_FRIEND
+     * <p>
+     * 实体在第一次推送时序列化并缓存，之后不应该再修改
+     * <p>
+     * 存储了推送记录的实体带有记录的Id，客户端收到后通过/msg/ack确认送达；
+     * 同一条消息发给多个接收者时，每个接收者的Id不同，其余部分共用同一个实体的序列化结果
      */
     public static class Entity {
         public Entity(int type, String content) {
@@ -64,5 +83,50 @@ public class PushModel {
         // 消息生成时间
         @Expose
         public LocalDateTime createAt = LocalDateTime.now();
+
+        // 推送记录的Id，没有存储记录时为null
+        private transient String id;
+        // 共用序列化结果的实体
+        private transient Entity shared;
+
+        // 缓存的Json字符串
+        private transient volatile String json;
+
+        /**
+         * 取得带有推送记录Id的实体，除Id以外的部分使用当前实体序列化的结果
+         *
+         * @param id 推送记录的Id
+         * @return 新的实体
+         */
+        public Entity withId(String id) {
+            Entity entity = new Entity(type, content);
+            entity.createAt = createAt;
+            entity.id = id;
+            entity.shared = this;
+            return entity;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * 取得当前实体的Json字符串，只在第一次调用时序列化
+         *
+         * @return Json字符串
+         */
+        public String toJson() {
+            String json = this.json;
+            if (json == null) {
+                if (shared != null) {
+                    // 在共用的Json前加上Id字段
+                    json = "{\"id\":" + TextUtil.toJson(id) + "," + shared.toJson().substring(1);
+                } else {
+                    json = TextUtil.toJson(this);
+                }
+                this.json = json;
+            }
+            return json;
+        }
     }
 }
@@ -0,0 +1,32 @@
+package net.lingmar.web.italker.push.bean.api.base;
+
+/**
+ * 推送扩散时一个接收者需要的信息
+ * 由查询直接投影得到，不需要加载完整的用户与群成员信息
+ */
+public class PushReceiver {
+    // 接收者的用户Id
+    private String userId;
+    // 接收者当前的设备推送Id，可能为空
+    private String pushId;
+    // 接收者在群中的通知级别
+    private int notifyLevel;
+
+    public PushReceiver(String userId, String pushId, int notifyLevel) {
+        this.userId = userId;
+        this.pushId = pushId;
+        this.notifyLevel = notifyLevel;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getPushId() {
+        return pushId;
+    }
+
+    public int getNotifyLevel() {
+        return notifyLevel;
+    }
+}
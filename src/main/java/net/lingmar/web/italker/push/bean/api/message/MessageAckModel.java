@@ -0,0 +1,33 @@
+package net.lingmar.web.italker.push.bean.api.message;
+
+import com.google.gson.annotations.Expose;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 确认推送记录送达的Model
+ */
+public class MessageAckModel {
+    // 一次最多确认的数量
+    public static final int MAX_SIZE = 500;
+
+    // 已经收到的推送记录Id
+    @Expose
+    private Set<String> ids = new HashSet<>();
+
+    public Set<String> getIds() {
+        return ids;
+    }
+
+    public void setIds(Set<String> ids) {
+        this.ids = ids;
+    }
+
+    public static boolean check(MessageAckModel model) {
+        return !(model == null
+                || model.ids == null
+                || model.ids.size() == 0
+                || model.ids.size() > MAX_SIZE);
+    }
+}
@@ -0,0 +1,53 @@
+package net.lingmar.web.italker.push.bean.api.user;
+
+import com.google.gson.annotations.Expose;
+import net.lingmar.web.italker.push.bean.card.UserCard;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量同步联系人的返回
+ * 客户端保存watermark，下次同步时传递回来，只返回这个时间之后变化的联系人
+ */
+public class ContactSyncModel {
+    // 本次同步的时间点
+    @Expose
+    private LocalDateTime watermark;
+    // 新关注的与资料有变化的联系人
+    @Expose
+    private List<UserCard> users = new ArrayList<>();
+    // 已经取消关注的联系人Id
+    @Expose
+    private List<String> removed = new ArrayList<>();
+
+    public ContactSyncModel(LocalDateTime watermark, List<UserCard> users) {
+        this.watermark = watermark;
+        this.users = users;
+    }
+
+    public LocalDateTime getWatermark() {
+        return watermark;
+    }
+
+    public void setWatermark(LocalDateTime watermark) {
+        this.watermark = watermark;
+    }
+
+    public List<UserCard> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<UserCard> users) {
+        this.users = users;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<String> removed) {
+        this.removed = removed;
+    }
+}
@@ -2,7 +2,6 @@ package net.lingmar.web.italker.push.bean.card;
 
 import com.google.gson.annotations.Expose;
 import net.lingmar.web.italker.push.bean.db.User;
-import net.lingmar.web.italker.push.utils.Hib;
 
 import java.time.LocalDateTime;
 
@@ -56,14 +55,9 @@ public class UserCard {
         this.modifyAt = user.getUpdateAt();
         this.isFollow = isFollow;
 
-        // 得到关注人和粉丝的数量
-        Hib.queryOnly(session -> {
-            // 重新加载一次用户信息
-            session.load(user, user.getId());
-
-            follows = user.getFollowers().size();
-            following = user.getFollowing().size();
-        });
+        // 得到关注人和粉丝的数量，直接使用用户信息中的计数，不需要查询数据库
+        follows = user.getFollowerCount();
+        following = user.getFollowingCount();
 
     }
 
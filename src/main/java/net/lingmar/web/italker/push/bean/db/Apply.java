@@ -22,7 +22,8 @@ public class Apply {
     @Id
     @PrimaryKeyJoinColumn
     @GeneratedValue(generator = "uuid")
-    @GenericGenerator(name = "uuid", strategy = "uuid2")
+    // 按时间递增的Id，插入时追加在主键索引的末尾
+    @GenericGenerator(name = "uuid", strategy = "net.lingmar.web.italker.push.utils.TimeOrderedIdGenerator")
     @Column(updatable = false, nullable = false)
     private String id;
 
@@ -1,6 +1,8 @@
 package net.lingmar.web.italker.push.bean.db;
 
 import net.lingmar.web.italker.push.bean.api.group.GroupCreateModel;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.GenericGenerator;
 import org.hibernate.annotations.UpdateTimestamp;
@@ -10,6 +12,9 @@ import java.time.LocalDateTime;
 
 @Entity
 @Table(name = "TB_GROUP")
+// 二级缓存，缓存区域的配置见ehcache.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "group")
 public class Group {
 
     @Id
@@ -57,6 +62,8 @@ public class Group {
 
     public Group(User owner, GroupCreateModel model) {
         this.owner = owner;
+        // 关联的Id不由Hibernate写入，在这里填充，插入时放入二级缓存的也是完整的数据
+        this.ownerId = owner.getId();
         this.description = model.getDesc();
         this.picture = model.getPicture();
         this.name = model.getName();
@@ -1,14 +1,24 @@
 package net.lingmar.web.italker.push.bean.db;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.GenericGenerator;
 import org.hibernate.annotations.UpdateTimestamp;
 
 import javax.persistence.*;
+import javax.persistence.Index;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "TB_GROUP_MEMBER")
+// 按用户查询成员信息与增量同步、按群查询管理员
+@Table(name = "TB_GROUP_MEMBER", indexes = {
+        @Index(columnList = "userId, updateAt"),
+        @Index(columnList = "groupId, permissionType")
+})
+// 二级缓存，缓存区域的配置见ehcache.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "groupMember")
 public class GroupMember {
     public static final int NOTIFY_LEVEL_INVALID = 1;   // 不接受消息
     public static final int NOTIFY_LEVEL_NONE = 2;   // 默认通知级别
@@ -21,7 +31,8 @@ public class GroupMember {
     @Id
     @PrimaryKeyJoinColumn
     @GeneratedValue(generator = "uuid")
-    @GenericGenerator(name = "uuid", strategy = "uuid2")
+    // 按时间递增的Id，插入时追加在主键索引的末尾
+    @GenericGenerator(name = "uuid", strategy = "net.lingmar.web.italker.push.utils.TimeOrderedIdGenerator")
     @Column(updatable = false, nullable = false)
     private String id;
 
@@ -68,6 +79,9 @@ public class GroupMember {
     public GroupMember(User user, Group group) {
         this.user = user;
         this.group = group;
+        // 关联的Id不由Hibernate写入，在这里填充，插入时放入二级缓存的也是完整的数据
+        this.userId = user.getId();
+        this.groupId = group.getId();
     }
 
     public String getId() {
@@ -23,9 +23,9 @@ public class Message {
 
     @Id
     @PrimaryKeyJoinColumn
-    // 这里不自动生成UUID，Id由代码写入，由客户端负责生成
-    // @GeneratedValue(generator = "uuid")
-    @GenericGenerator(name = "uuid", strategy = "uuid2")
+    // Id由客户端负责生成，生成器保留已有的Id，没有时才按时间生成
+    @GeneratedValue(generator = "uuid")
+    @GenericGenerator(name = "uuid", strategy = "net.lingmar.web.italker.push.utils.TimeOrderedIdGenerator")
     @Column(updatable = false, nullable = false)
     private String id;
 
@@ -85,6 +85,9 @@ public class Message {
 
         this.sender = sender;
         this.receiver = receiver;
+        // 关联的Id不由Hibernate写入，在这里填充，保存后不需要再从数据库查询
+        this.senderId = sender.getId();
+        this.receiverId = receiver.getId();
     }
 
     // 发送给群的构造函数
@@ -96,6 +99,8 @@ public class Message {
 
         this.sender = sender;
         this.group = group;
+        this.senderId = sender.getId();
+        this.groupId = group.getId();
     }
 
     public String getId() {
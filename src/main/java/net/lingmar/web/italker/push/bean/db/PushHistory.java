@@ -11,13 +11,15 @@ import java.time.LocalDateTime;
  * 推送记录表
  */
 @Entity
-@Table(name = "TB_PUSH_HISTORY")
+// 按接收者拉取没有送达的记录，按(createAt, id)分页
+@Table(name = "TB_PUSH_HISTORY", indexes = @Index(columnList = "receiverId, arrivalAt, createAt, id"))
 public class PushHistory {
 
     @Id
     @PrimaryKeyJoinColumn
     @GeneratedValue(generator = "uuid")
-    @GenericGenerator(name = "uuid", strategy = "uuid2")
+    // 按时间递增的Id，插入时追加在主键索引的末尾
+    @GenericGenerator(name = "uuid", strategy = "net.lingmar.web.italker.push.utils.TimeOrderedIdGenerator")
     @Column(updatable = false, nullable = false)
     private String id;
 
@@ -95,6 +97,7 @@ public class PushHistory {
 
     public void setReceiver(User receiver) {
         this.receiver = receiver;
+        this.receiverId = receiver != null ? receiver.getId() : null;
     }
 
     public String getReceiverId() {
@@ -111,6 +114,7 @@ public class PushHistory {
 
     public void setSender(User sender) {
         this.sender = sender;
+        this.senderId = sender != null ? sender.getId() : null;
     }
 
     public String getSenderId() {
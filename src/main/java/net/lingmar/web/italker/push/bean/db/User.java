@@ -1,10 +1,12 @@
 package net.lingmar.web.italker.push.bean.db;
 
 import org.hibernate.annotations.*;
+import org.hibernate.annotations.Cache;
 
 import javax.persistence.*;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.security.auth.Subject;
 import javax.swing.*;
@@ -17,7 +19,11 @@ import java.util.Set;
  * 用户的Model，对应数据库
  */
 @Entity
-@Table(name = "TB_USER")
+// 增量同步联系人时按更新时间查询
+@Table(name = "TB_USER", indexes = @Index(columnList = "updateAt"))
+// 二级缓存，缓存区域的配置见ehcache.xml
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "user")
 public class User implements Principal {
 
     @Id
@@ -72,11 +78,19 @@ public class User implements Principal {
     @Column(nullable = false)
     private LocalDateTime updateAt = LocalDateTime.now();
 
-    // 最后一次收到消息的时间
-    @UpdateTimestamp
-    @Column(nullable = false)
+    // 最后一次收到消息的时间，由PushAckBuffer在客户端确认送达时写入
+    // 修改用户信息时不更新这个字段，避免覆盖
+    @Column(nullable = false, updatable = false)
     private LocalDateTime lastReceivedAt = LocalDateTime.now();
 
+    // 关注我的人的数量，和followers集合的数量保持一致，关注时同步更新
+    // 只在关注时通过update ... set followerCount = followerCount + 1修改，保存实体时不写入
+    @Column(nullable = false, updatable = false)
+    private int followerCount = 0;
+
+    // 我关注的人的数量，和following集合的数量保持一致，关注时同步更新
+    @Column(nullable = false, updatable = false)
+    private int followingCount = 0;
 
     // 我关注的人的列表
     @JoinColumn(name = "originId")
@@ -202,6 +216,22 @@ public class User implements Principal {
         this.lastReceivedAt = lastReceivedAt;
     }
 
+    public int getFollowerCount() {
+        return followerCount;
+    }
+
+    public void setFollowerCount(int followerCount) {
+        this.followerCount = followerCount;
+    }
+
+    public int getFollowingCount() {
+        return followingCount;
+    }
+
+    public void setFollowingCount(int followingCount) {
+        this.followingCount = followingCount;
+    }
+
     public Set<UserFollow> getFollowing() {
         return following;
     }
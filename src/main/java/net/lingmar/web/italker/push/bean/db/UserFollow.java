@@ -12,13 +12,15 @@ import java.time.LocalDateTime;
  * 用于用户直接进行好友关系的实现
  */
 @Entity
-@Table(name = "TB_USER_FOLLOW")
+// 增量同步联系人时按发起者与更新时间查询
+@Table(name = "TB_USER_FOLLOW", indexes = @Index(columnList = "originId, updateAt"))
 public class UserFollow {
 
     @Id
     @PrimaryKeyJoinColumn
     @GeneratedValue(generator = "uuid")
-    @GenericGenerator(name = "uuid", strategy = "uuid2")
+    // 按时间递增的Id，插入时追加在主键索引的末尾
+    @GenericGenerator(name = "uuid", strategy = "net.lingmar.web.italker.push.utils.TimeOrderedIdGenerator")
     @Column(updatable = false, nullable = false)
     private String id;
 
@@ -0,0 +1,126 @@
+package net.lingmar.web.italker.push.factory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import net.lingmar.web.italker.push.utils.Hib;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 关注关系的索引，用于判断一个用户是否关注了另一个用户
+ * 以用户Id为Key，缓存这个用户关注的所有用户Id；
+ * 第一次访问一个用户时一次查询加载，之后的判断不再查询数据库
+ * <p>
+ * 关注的集合使用不可变的ImmutableSet，内部是开放寻址的数组，比HashSet占用更少的内存；
+ * 关注时复制一份新的集合替换，关注的操作远少于查询；
+ * 加载期间发生关注时不保留加载的结果，Guava不会取消正在进行的加载；
+ * 工作单元中的查询会读到当前请求还没有提交的关注，只在当前请求中使用，
+ * 提交之后再在新的Session中加载并缓存
+ * 最多缓存的用户数量：-Ditalker.user.followIndexSize，默认20000，按最近使用淘汰
+ * 过期时间：-Ditalker.user.followIndexExpire，单位秒，默认600
+ */
+public class FollowIndex {
+    private static final Cache<String, Set<String>> cache = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("italker.user.followIndexSize", 20000))
+            .expireAfterWrite(Long.getLong("italker.user.followIndexExpire", 600), TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    // 按用户Id分段的修改版本，每次关注或者失效时加一
+    private static final AtomicLongArray versions = new AtomicLongArray(1024);
+
+    /**
+     * 取得一个用户关注的所有用户Id，没有缓存时从数据库加载
+     *
+     * @param originId 用户Id
+     * @return 关注的用户Id集合，查询失败返回null
+     */
+    static Set<String> following(String originId) {
+        Set<String> cached = cache.getIfPresent(originId);
+        if (cached != null)
+            return cached;
+
+        if (Hib.inUnitOfWork()) {
+            Set<String> targetIds;
+            try {
+                targetIds = load(originId);
+            } catch (Exception e) {
+                return null;
+            }
+            // 回滚时不会执行，未提交的关注不会进入缓存
+            Hib.afterCommit(() -> getOrLoad(originId));
+            return targetIds;
+        }
+        return getOrLoad(originId);
+    }
+
+    // 从缓存中取得，没有缓存时加载并缓存，不能在工作单元中调用
+    private static Set<String> getOrLoad(String originId) {
+        long version = versions.get(slot(originId));
+        Set<String> targetIds;
+        try {
+            targetIds = cache.get(originId, () -> load(originId));
+        } catch (ExecutionException e) {
+            return null;
+        }
+        // 加载期间关注发生了变化，加载的结果可能缺少新的关注，不再保留
+        if (versions.get(slot(originId)) != version)
+            cache.asMap().remove(originId, targetIds);
+        return targetIds;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> load(String originId) throws Exception {
+        List<String> targetIds = Hib.queryReadOnly(session -> (List<String>) session
+                .createQuery("select f.targetId from UserFollow f where f.originId=:originId")
+                .setParameter("originId", originId)
+                .list());
+        // 查询失败时不缓存
+        if (targetIds == null)
+            throw new Exception("Load user follows failed: " + originId);
+
+        return ImmutableSet.copyOf(targetIds);
+    }
+
+    /**
+     * 添加一条关注记录，用户没有被缓存时不需要处理
+     *
+     * @param originId 发起者
+     * @param targetId 被关注的人
+     */
+    static void add(String originId, String targetId) {
+        // 先增加版本，正在进行的加载完成后发现版本变化，会移除自己的结果
+        versions.incrementAndGet(slot(originId));
+        cache.asMap().computeIfPresent(originId, (key, set) -> set.contains(targetId) ? set :
+                ImmutableSet.<String>builder().addAll(set).add(targetId).build());
+    }
+
+    /**
+     * 使一个用户的缓存失效，下次访问时重新加载
+     *
+     * @param originId 用户Id
+     */
+    public static void invalidate(String originId) {
+        versions.incrementAndGet(slot(originId));
+        cache.invalidate(originId);
+    }
+
+    private static int slot(String originId) {
+        return originId.hashCode() & (versions.length() - 1);
+    }
+
+    /**
+     * 获取缓存的命中统计
+     *
+     * @return CacheStats
+     */
+    public static CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -1,22 +1,33 @@
 package net.lingmar.web.italker.push.factory;
 
 import com.google.common.base.Strings;
+import net.lingmar.web.italker.push.bean.api.base.PushReceiver;
 import net.lingmar.web.italker.push.bean.api.group.GroupCreateModel;
 import net.lingmar.web.italker.push.bean.db.Group;
 import net.lingmar.web.italker.push.bean.db.GroupMember;
 import net.lingmar.web.italker.push.bean.db.User;
 import net.lingmar.web.italker.push.utils.Hib;
+import net.lingmar.web.italker.push.utils.NGramIndex;
 
 import java.lang.reflect.Member;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 public class GroupFactory {
+    // 群名字的搜索索引
+    private static final NGramIndex searchIndex = new NGramIndex("group");
+
     // 查询一个群
     public static Group findById(String receiverId) {
-        return Hib.query(session -> session.get(Group.class, receiverId));
+        return Hib.queryReadOnly(session -> session.get(Group.class, receiverId));
     }
 
     // 查询一个群，同时user得是这个群的成员
@@ -29,7 +40,7 @@ public class GroupFactory {
     }
 
     public static Group findByName(String name) {
-        return Hib.query(session -> (Group) session
+        return Hib.queryReadOnly(session -> (Group) session
                 .createQuery("from Group where lower(name)=:name")
                 .setParameter("name", name.toLowerCase())
                 .uniqueResult());
@@ -37,7 +48,7 @@ public class GroupFactory {
 
     // 获取一个群的所有成员
     public static Set<GroupMember> getMembers(Group group) {
-        return Hib.query(session -> {
+        return Hib.queryReadOnly(session -> {
             @SuppressWarnings("unchecked")
             List<GroupMember> members = session
                     .createQuery("from GroupMember where group=:group")
@@ -48,9 +59,31 @@ public class GroupFactory {
         });
     }
 
+    /**
+     * 查询群消息需要推送的成员
+     * 一次查询只取出推送需要的字段，不加载完整的成员、用户与群信息，
+     * 发送者本人在查询中就已经排除，不接收消息的成员也会返回，用于存储历史记录
+     *
+     * @param groupId       群Id
+     * @param excludeUserId 发送者的用户Id
+     * @return 推送的接收者列表
+     */
+    public static List<PushReceiver> getPushReceivers(String groupId, String excludeUserId) {
+        return Hib.queryReadOnly(session -> session
+                .createQuery("select new " + PushReceiver.class.getName() +
+                        "(gm.userId, u.pushId, gm.notifyLevel) " +
+                        "from GroupMember gm, User u " +
+                        "where gm.groupId=:groupId " +
+                        "and u.id=gm.userId " +
+                        "and gm.userId<>:userId", PushReceiver.class)
+                .setParameter("groupId", groupId)
+                .setParameter("userId", excludeUserId)
+                .list());
+    }
+
     // 获取一个人加入的所有群
     public static Set<GroupMember> getMembers(User self) {
-        return Hib.query(session -> {
+        return Hib.queryReadOnly(session -> {
             @SuppressWarnings("unchecked")
             List<GroupMember> members = session
                     .createQuery("from GroupMember where user=:user")
@@ -61,28 +94,129 @@ public class GroupFactory {
         });
     }
 
+    /**
+     * 获取一个用户在一组群中的成员信息，一次查询
+     *
+     * @param self     用户
+     * @param groupIds 群Id
+     * @return 以群Id为Key的成员信息，不是成员的群没有记录，查询失败返回null
+     */
+    public static Map<String, GroupMember> getMembers(User self, Collection<String> groupIds) {
+        if (groupIds.isEmpty())
+            return new HashMap<>();
+
+        return Hib.queryReadOnly(session -> {
+            @SuppressWarnings("unchecked")
+            List<GroupMember> members = session
+                    .createQuery("from GroupMember gm where gm.userId=:userId and gm.groupId in (:groupIds)")
+                    .setParameter("userId", self.getId())
+                    .setParameterList("groupIds", groupIds)
+                    .list();
+
+            Map<String, GroupMember> map = new HashMap<>();
+            for (GroupMember member : members) {
+                map.put(member.getGroupId(), member);
+            }
+            return map;
+        });
+    }
+
+    /**
+     * 获取一个用户在某个时间之后加入或者修改过的成员信息，同时取出对应的群
+     *
+     * @param self  用户
+     * @param since 时间
+     * @return 成员信息，查询失败返回null
+     */
+    public static Set<GroupMember> getMembers(User self, LocalDateTime since) {
+        return Hib.queryReadOnly(session -> {
+            @SuppressWarnings("unchecked")
+            List<GroupMember> members = session
+                    .createQuery("from GroupMember gm join fetch gm.group " +
+                            "where gm.userId=:userId and gm.updateAt>:since")
+                    .setParameter("userId", self.getId())
+                    .setParameter("since", since)
+                    .list();
+
+            return new HashSet<>(members);
+        });
+    }
+
+    /**
+     * 获取一个群的管理员，包括创建者
+     *
+     * @param groupId 群Id
+     * @return 管理员的成员信息，查询失败返回null
+     */
+    public static Set<GroupMember> getAdmins(String groupId) {
+        return Hib.queryReadOnly(session -> {
+            @SuppressWarnings("unchecked")
+            List<GroupMember> members = session
+                    .createQuery("from GroupMember gm where gm.groupId=:groupId and gm.permissionType<>:none")
+                    .setParameter("groupId", groupId)
+                    .setParameter("none", GroupMember.PERMISSION_TYPE_NONE)
+                    .list();
+
+            return new HashSet<>(members);
+        });
+    }
+
     // 创建群
     public static Group create(User creator, GroupCreateModel model, List<User> users) {
-        return Hib.query(session -> {
+        List<GroupMember> members = new ArrayList<>();
+        Group result = Hib.query(session -> {
             Group group = new Group(creator, model);
             session.save(group);
 
             GroupMember creatorMember = new GroupMember(creator, group);
             creatorMember.setPermissionType(GroupMember.PERMISSION_TYPE_ADMIN_SU);
             session.save(creatorMember);
+            members.add(creatorMember);
 
             for (User user : users) {
                 GroupMember member = new GroupMember(user, group);
                 member.setPermissionType(GroupMember.PERMISSION_TYPE_NONE);
                 session.save(member);
+                members.add(member);
             }
             return group;
         });
+
+        if (result != null) {
+            // 提交之后，新建的群直接缓存全部成员关系
+            Hib.afterCommit(() -> {
+                MembershipCache.putAll(result.getId(), members);
+                searchIndex.put(result.getId(), result.getName());
+            });
+        }
+        return result;
     }
 
-    // 获取一个群成员
+    /**
+     * 获取一个群成员
+     * 先通过成员关系缓存判断是否是群成员，不是成员时不需要查询数据库，
+     * 是成员时通过成员Id从二级缓存中取得
+     *
+     * @param userId  用户Id
+     * @param groupId 群Id
+     * @return 群成员，不是群成员时返回null
+     */
     public static GroupMember getMember(String userId, String groupId) {
-        return Hib.query(session -> (GroupMember) session
+        Map<String, MembershipCache.Membership> members = MembershipCache.get(groupId);
+        if (members != null) {
+            MembershipCache.Membership membership = members.get(userId);
+            if (membership == null)
+                return null;
+
+            GroupMember member = GroupMemberFactory.findById(membership.getMemberId());
+            if (member != null)
+                return member;
+
+            // 缓存与数据库不一致，重新加载
+            MembershipCache.invalidate(groupId);
+        }
+
+        return Hib.queryReadOnly(session -> (GroupMember) session
                 .createQuery("from GroupMember where userId=:userId and groupId=:groupId")
                 .setParameter("userId", userId)
                 .setParameter("groupId", groupId)
@@ -90,14 +224,32 @@ public class GroupFactory {
     }
 
     // 搜索群
+    @SuppressWarnings("unchecked")
     public static List<Group> search(String name) {
+        if (!Strings.isNullOrEmpty(name)) {
+            // 优先使用内存中的索引，还没有加载完成时查询数据库
+            List<String> ids = searchIndex.search(name, 20);
+            if (ids != null) {
+                if (ids.isEmpty())
+                    return new ArrayList<>();
+                List<Group> groups = Hib.queryReadOnly(session -> (List<Group>) session
+                        .createQuery("from Group where id in (:ids)")
+                        .setParameterList("ids", ids)
+                        .list());
+                if (groups == null)
+                    return null;
+                // 保持索引中的排序
+                groups.sort(Comparator.comparingInt(group -> ids.indexOf(group.getId())));
+                return groups;
+            }
+        }
+
         if (Strings.isNullOrEmpty(name)) {
             name = "";  // 保证不能为null的情况
         }
         final String searchName = "%" + name + "%";
 
-        //noinspection unchecked
-        return Hib.query(session -> (List<Group>) session
+        return Hib.queryReadOnly(session -> (List<Group>) session
                 .createQuery("from Group where lower(name) like :name ")
                 .setParameter("name", searchName)
                 .setMaxResults(20)
@@ -106,7 +258,7 @@ public class GroupFactory {
 
     // 给群添加成员
     public static Set<GroupMember> addMembers(Group group, Set<User> insertUsers) {
-        return Hib.query(session -> {
+        Set<GroupMember> result = Hib.query(session -> {
             Set<GroupMember> members = new HashSet<>();
             for (User user : insertUsers) {
                 GroupMember member = new GroupMember(user, group);
@@ -117,5 +269,28 @@ public class GroupFactory {
 
             return members;
         });
+
+        // 群的成员关系重新加载，在提交之后也会再失效一次
+        MembershipCache.invalidate(group.getId());
+        ValidatorCache.invalidateMembers(group.getId());
+        return result;
+    }
+
+    /**
+     * 从数据库加载群名字的搜索索引，在启动时调用
+     */
+    @SuppressWarnings("unchecked")
+    public static void buildSearchIndex() {
+        Long total = Hib.queryReadOnly(session -> (Long) session
+                .createQuery("select count(*) from Group")
+                .uniqueResult());
+        if (total == null)
+            return;
+
+        searchIndex.build(total, (offset, limit) -> Hib.queryReadOnly(session -> (List<Object[]>) session
+                .createQuery("select g.id, g.name from Group g order by g.id")
+                .setFirstResult(offset)
+                .setMaxResults(limit)
+                .list()));
     }
 }
@@ -6,13 +6,16 @@ import net.lingmar.web.italker.push.utils.Hib;
 public class GroupMemberFactory {
     // 查询一个群成员
     public static GroupMember findById(String memberId) {
-        return Hib.query(session -> session.get(GroupMember.class, memberId));
+        return Hib.queryReadOnly(session -> session.get(GroupMember.class, memberId));
     }
 
     public static GroupMember update(GroupMember member) {
-        return Hib.query(session -> {
-            session.saveOrUpdate(member);
-            return member;
-        });
+        // 传入的成员来自只读的查询，通过merge写入
+        GroupMember result = Hib.query(session -> Hib.merge(session, member, member.getId()));
+
+        // 权限与通知级别可能发生了变化，整个群的成员关系重新加载
+        MembershipCache.invalidate(member.getGroup().getId());
+        ValidatorCache.invalidateMembers(member.getGroup().getId());
+        return result;
     }
 }
@@ -0,0 +1,176 @@
+package net.lingmar.web.italker.push.factory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import net.lingmar.web.italker.push.bean.db.GroupMember;
+import net.lingmar.web.italker.push.utils.Hib;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 群成员关系的缓存，用于判断一个用户是否是群成员
+ * 以群Id为Key，缓存群内每个用户的成员Id、权限与通知级别；
+ * 第一次访问一个群时一次查询加载这个群的全部成员关系，之后的判断不再查询数据库
+ * <p>
+ * 创建群时直接缓存，添加成员、修改成员信息时使整个群失效，在提交前后各失效一次；
+ * 加载期间群被修改时不保留加载的结果，Guava的invalidate不会取消正在进行的加载；
+ * 工作单元中的查询会读到当前请求还没有提交的修改，只在当前请求中使用，
+ * 提交之后再在新的Session中加载并缓存
+ * 最多缓存的群数量：-Ditalker.group.membershipCacheSize，默认2000，按最近使用淘汰
+ * 过期时间：-Ditalker.group.membershipCacheExpire，单位秒，默认600
+ */
+public class MembershipCache {
+    private static final Cache<String, Map<String, Membership>> cache = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("italker.group.membershipCacheSize", 2000))
+            .expireAfterWrite(Long.getLong("italker.group.membershipCacheExpire", 600), TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    // 按群Id分段的修改版本，每次失效时加一
+    private static final AtomicLongArray versions = new AtomicLongArray(1024);
+
+    /**
+     * 取得一个群的全部成员关系，没有缓存时从数据库加载
+     *
+     * @param groupId 群Id
+     * @return 以用户Id为Key的成员关系，查询失败返回null
+     */
+    static Map<String, Membership> get(String groupId) {
+        Map<String, Membership> cached = cache.getIfPresent(groupId);
+        if (cached != null)
+            return cached;
+
+        if (Hib.inUnitOfWork()) {
+            Map<String, Membership> members;
+            try {
+                members = load(groupId);
+            } catch (Exception e) {
+                return null;
+            }
+            // 回滚时不会执行，未提交的成员不会进入缓存
+            Hib.afterCommit(() -> getOrLoad(groupId));
+            return members;
+        }
+        return getOrLoad(groupId);
+    }
+
+    // 从缓存中取得，没有缓存时加载并缓存，不能在工作单元中调用
+    private static Map<String, Membership> getOrLoad(String groupId) {
+        long version = versions.get(slot(groupId));
+        Map<String, Membership> members;
+        try {
+            members = cache.get(groupId, () -> load(groupId));
+        } catch (ExecutionException e) {
+            return null;
+        }
+        // 加载期间群被修改过，加载的结果可能是旧的，不再保留
+        if (versions.get(slot(groupId)) != version)
+            cache.asMap().remove(groupId, members);
+        return members;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Membership> load(String groupId) throws Exception {
+        List<Object[]> rows = Hib.queryReadOnly(session -> (List<Object[]>) session
+                .createQuery("select gm.id, gm.userId, gm.permissionType, gm.notifyLevel " +
+                        "from GroupMember gm where gm.groupId=:groupId")
+                .setParameter("groupId", groupId)
+                .list());
+        // 查询失败时不缓存
+        if (rows == null)
+            throw new Exception("Load group members failed: " + groupId);
+
+        Map<String, Membership> members = new ConcurrentHashMap<>();
+        for (Object[] row : rows) {
+            members.put((String) row[1], new Membership((String) row[0], (int) row[2], (int) row[3]));
+        }
+        return members;
+    }
+
+    /**
+     * 缓存一个新创建的群的全部成员，不需要再从数据库加载
+     *
+     * @param groupId 群Id
+     * @param members 全部的成员
+     */
+    static void putAll(String groupId, Collection<GroupMember> members) {
+        Map<String, Membership> map = new ConcurrentHashMap<>();
+        for (GroupMember member : members) {
+            map.put(userId(member), Membership.of(member));
+        }
+        cache.put(groupId, map);
+    }
+
+    /**
+     * 使一个群的缓存失效，下次访问时重新加载
+     * 提交之后再失效一次，清除提交前被其他请求重新加载的旧数据
+     *
+     * @param groupId 群Id
+     */
+    public static void invalidate(String groupId) {
+        discard(groupId);
+        Hib.afterCommit(() -> discard(groupId));
+    }
+
+    private static void discard(String groupId) {
+        // 先增加版本，正在进行的加载完成后发现版本变化，会移除自己的结果
+        versions.incrementAndGet(slot(groupId));
+        cache.invalidate(groupId);
+    }
+
+    private static int slot(String groupId) {
+        return groupId.hashCode() & (versions.length() - 1);
+    }
+
+    /**
+     * 获取缓存的命中统计
+     *
+     * @return CacheStats
+     */
+    public static CacheStats stats() {
+        return cache.stats();
+    }
+
+    // 新创建的成员userId还没有从数据库中读取，需要从关联的实体中取得
+    private static String userId(GroupMember member) {
+        return member.getUserId() != null ? member.getUserId() : member.getUser().getId();
+    }
+
+    /**
+     * 一个用户在群中的成员关系
+     */
+    public static class Membership {
+        private final String memberId;
+        private final int permissionType;
+        private final int notifyLevel;
+
+        public Membership(String memberId, int permissionType, int notifyLevel) {
+            this.memberId = memberId;
+            this.permissionType = permissionType;
+            this.notifyLevel = notifyLevel;
+        }
+
+        static Membership of(GroupMember member) {
+            return new Membership(member.getId(), member.getPermissionType(), member.getNotifyLevel());
+        }
+
+        public String getMemberId() {
+            return memberId;
+        }
+
+        public int getPermissionType() {
+            return permissionType;
+        }
+
+        public int getNotifyLevel() {
+            return notifyLevel;
+        }
+    }
+}
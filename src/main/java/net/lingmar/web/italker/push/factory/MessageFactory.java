@@ -1,18 +1,42 @@
 package net.lingmar.web.italker.push.factory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.lingmar.web.italker.push.bean.api.message.MessageCreateModel;
 import net.lingmar.web.italker.push.bean.db.Group;
 import net.lingmar.web.italker.push.bean.db.Message;
 import net.lingmar.web.italker.push.bean.db.User;
 import net.lingmar.web.italker.push.utils.Hib;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 消息数据存储的类
  */
 public class MessageFactory {
+    private static final String INSERT_SQL = "insert into TB_MESSAGE " +
+            "(id, content, attach, type, senderId, receiverId, groupId, createAt, updateAt) " +
+            "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // 最近保存的消息，客户端重复提交时直接返回，不需要先查询数据库
+    // 最大数量：-Ditalker.message.recentCacheSize，默认10000
+    // 过期时间：-Ditalker.message.recentCacheExpire，单位秒，默认600
+    private static final Cache<String, Message> recentMessages = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("italker.message.recentCacheSize", 10000))
+            .expireAfterWrite(Long.getLong("italker.message.recentCacheExpire", 600), TimeUnit.SECONDS)
+            .build();
+
     // 查询某一个消息
     public static Message findById(String id) {
-        return Hib.query(session -> session.get(Message.class, id));
+        return Hib.queryReadOnly(session -> session.get(Message.class, id));
+    }
+
+    // 查询最近保存的消息，不查询数据库
+    public static Message findRecent(String id) {
+        return recentMessages.getIfPresent(id);
     }
 
     // 添加一条普通消息
@@ -28,15 +52,35 @@ public class MessageFactory {
     }
 
     private static Message save(Message message) {
-        return Hib.query(session -> {
-            session.save(message);
+        // Id由客户端生成，时间与关联的Id在创建时已经填充，只需要一次插入；
+        // 插入加入请求的工作单元，不再占用第二个连接；
+        // Id重复时只有这一条语句失败（MySQL中不影响事务），不会使工作单元失败，返回null
+        Boolean inserted = Hib.query(session -> session.doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+                statement.setString(1, message.getId());
+                statement.setString(2, message.getContent());
+                statement.setString(3, message.getAttach());
+                statement.setInt(4, message.getType());
+                statement.setString(5, message.getSenderId());
+                statement.setString(6, message.getReceiverId());
+                statement.setString(7, message.getGroupId());
+                statement.setTimestamp(8, Timestamp.valueOf(message.getCreateAt()));
+                statement.setTimestamp(9, Timestamp.valueOf(message.getUpdateAt()));
+                statement.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                // 违反约束，比如Id已经存在
+                if (e.getSQLState() != null && e.getSQLState().startsWith("23"))
+                    return false;
+                throw e;
+            }
+        }));
 
-            // 写入到数据库
-            session.flush();
+        if (inserted == null || !inserted)
+            return null;
 
-            // 紧接着从数据库中查询出来
-            session.refresh(message);
-            return message;
-        });
+        // 提交之后才放入缓存，回滚的消息不会被当作已经保存
+        Hib.afterCommit(() -> recentMessages.put(message.getId(), message));
+        return message;
     }
 }
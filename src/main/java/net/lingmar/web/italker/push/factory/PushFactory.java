@@ -1,25 +1,33 @@
 package net.lingmar.web.italker.push.factory;
 
-import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import net.lingmar.web.italker.push.bean.api.base.PushModel;
+import net.lingmar.web.italker.push.bean.api.base.PushReceiver;
 import net.lingmar.web.italker.push.bean.card.GroupMemberCard;
 import net.lingmar.web.italker.push.bean.card.MessageCard;
 import net.lingmar.web.italker.push.bean.card.UserCard;
 import net.lingmar.web.italker.push.bean.db.*;
-import net.lingmar.web.italker.push.utils.Hib;
-import net.lingmar.web.italker.push.utils.PushDispatcher;
+import net.lingmar.web.italker.push.utils.PushCoalescer;
+import net.lingmar.web.italker.push.utils.PushHistoryPersister;
 import net.lingmar.web.italker.push.utils.TextUtil;
+import net.lingmar.web.italker.push.utils.TimeOrderedIdGenerator;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 消息存储与处理工具类
  */
 public class PushFactory {
+    // 群推送按成员的通知级别统计：不接受消息，只存储历史记录
+    private static final AtomicLong invalidPushes = new AtomicLong();
+    // 默认通知级别，正常推送
+    private static final AtomicLong nonePushes = new AtomicLong();
+    // 接受消息不提示，走免打扰推送
+    private static final AtomicLong closePushes = new AtomicLong();
+
     // 发送一条消息，并在当前的历史记录中存储记录
     public static void pushNewMessage(User sender, Message message) {
         if (sender == null || message == null)
@@ -28,10 +36,19 @@ public class PushFactory {
         // 消息卡片用于发送
         MessageCard card = new MessageCard(message);
         // 要推送的JSON字符串
-        String entity = TextUtil.toJson(card);
+        pushNewMessage(sender, message, TextUtil.toJson(card));
+    }
 
-        // 发送者
-        PushDispatcher pusher = new PushDispatcher();
+    /**
+     * 发送一条消息，并在当前的历史记录中存储记录
+     *
+     * @param sender  发送者
+     * @param message 消息
+     * @param entity  已经序列化好的消息卡片
+     */
+    public static void pushNewMessage(User sender, Message message, String entity) {
+        if (sender == null || message == null || Strings.isNullOrEmpty(entity))
+            return;
 
         if (message.getGroup() == null
                 && Strings.isNullOrEmpty(message.getGroupId())) {
@@ -49,58 +66,59 @@ public class PushFactory {
             history.setReceiverPushId(receiver.getPushId()); // 接受者当前的设备推送Id
 
             PushModel pushModel = new PushModel();
-            pushModel.add(history.getEntityType(), history.getEntity());
+            pushModel.add(pushEntity(history));
 
-            pusher.add(receiver, pushModel);
+            PushCoalescer.add(receiver, pushModel);
 
             // 数据库存储
-            Hib.queryOnly(session -> session.save(history));
+            PushHistoryPersister.save(history);
         } else {
-            Group group = message.getGroup();
-            if (group == null)
-                group = GroupFactory.findById(message.getGroupId());
+            String groupId = message.getGroup() != null ?
+                    message.getGroup().getId() : message.getGroupId();
 
-            if (group == null)
+            // 发给群成员，一次查询得到除发送者以外所有需要推送的成员
+            List<PushReceiver> receivers = GroupFactory.getPushReceivers(groupId, sender.getId());
+            if (receivers == null || receivers.size() == 0)
                 return;
 
-            // 发给群成员
-            Set<GroupMember> members = GroupFactory.getMembers(group);
-            if (members == null | members.size() == 0)
-                return;
-
-            members = members.stream()
-                    .filter((Predicate<GroupMember>) input -> !input.getId().equalsIgnoreCase(sender.getId()))
-                    .collect(Collectors.toSet());
+            // 所有接收者共用同一个推送实体，只序列化一次
+            PushModel.Entity pushEntity = new PushModel.Entity(PushModel.ENTITY_TYPE_MESSAGE, entity);
 
             List<PushHistory> histories = new ArrayList<>();
-            addGroupMembersPushModel(pusher, histories, members, entity, PushModel.ENTITY_TYPE_MESSAGE);
+            for (PushReceiver receiver : receivers) {
+                // 历史记录表字段建立
+                PushHistory history = new PushHistory();
+                history.setEntityType(PushModel.ENTITY_TYPE_MESSAGE); // 普通消息类型
+                history.setEntity(entity);
+                history.setSender(sender);
+                history.setReceiverId(receiver.getUserId());
+                history.setReceiverPushId(receiver.getPushId()); // 接受者当前的设备推送Id
+                histories.add(history);
+
+                pushByNotifyLevel(history, receiver.getNotifyLevel(), pushEntity);
+            }
 
             // 保存到数据库
-            Hib.queryOnly(session -> {
-                for (PushHistory history : histories) {
-                    session.saveOrUpdate(history);
-                }
-            });
+            PushHistoryPersister.saveAll(histories);
         }
-
-        pusher.submit();
     }
 
     /**
      * 给群成员构建一个信息
      * 把消息存储到数据库历史中，每个人每条消息都是一个记录
      *
-     * @param pusher            推送的发送者
      * @param histories         数据库要存储的列表
      * @param members           要发送的用户
      * @param entity            消息字符串
      * @param entityTypeMessage 消息类型
      */
-    private static void addGroupMembersPushModel(PushDispatcher pusher,
-                                                 List<PushHistory> histories,
+    private static void addGroupMembersPushModel(List<PushHistory> histories,
                                                  Set<GroupMember> members,
                                                  String entity,
                                                  int entityTypeMessage) {
+        // 所有成员共用同一个推送实体，只序列化一次
+        PushModel.Entity pushEntity = new PushModel.Entity(entityTypeMessage, entity);
+
         for (GroupMember member : members) {
             // 急加载，不需要再通过Id去数据库查找
             User receiver = member.getUser();
@@ -115,10 +133,33 @@ public class PushFactory {
             history.setReceiverPushId(receiver.getPushId()); // 接受者当前的设备推送Id
             histories.add(history);
 
-            PushModel pushModel = new PushModel();
-            pushModel.add(history.getEntityType(), history.getEntity());
+            pushByNotifyLevel(history, member.getNotifyLevel(), pushEntity);
+        }
+    }
 
-            pusher.add(receiver, pushModel);
+    /**
+     * 按群成员的通知级别推送一条历史记录
+     * 不接受消息的成员只存储历史记录，等待客户端同步；
+     * 接受消息不提示的成员走免打扰推送，合并的时间窗口更长
+     *
+     * @param history     已经构建好的历史记录
+     * @param notifyLevel 成员的通知级别
+     * @param pushEntity  推送的实体，同一条消息的所有接收者共用
+     */
+    private static void pushByNotifyLevel(PushHistory history, int notifyLevel, PushModel.Entity pushEntity) {
+        if (notifyLevel == GroupMember.NOTIFY_LEVEL_INVALID) {
+            invalidPushes.incrementAndGet();
+            return;
+        }
+
+        PushModel pushModel = new PushModel().add(pushEntity(history, pushEntity));
+
+        if (notifyLevel == GroupMember.NOTIFY_LEVEL_CLOSE) {
+            closePushes.incrementAndGet();
+            PushCoalescer.addQuiet(history.getReceiverPushId(), pushModel);
+        } else {
+            nonePushes.incrementAndGet();
+            PushCoalescer.add(history.getReceiverPushId(), pushModel);
         }
     }
 
@@ -128,9 +169,6 @@ public class PushFactory {
      * @param members 被加入群的成员
      */
     public static void pushJoinGroup(Set<GroupMember> members) {
-        // 发送者
-        PushDispatcher pusher = new PushDispatcher();
-
         List<PushHistory> histories = new ArrayList<>();
         for (GroupMember member : members) {
             User receiver = member.getUser();
@@ -150,19 +188,13 @@ public class PushFactory {
             histories.add(history);
 
             PushModel pushModel = new PushModel();
-            pushModel.add(history.getEntityType(), history.getEntity());
+            pushModel.add(pushEntity(history));
 
-            pusher.add(receiver, pushModel);
+            PushCoalescer.add(receiver, pushModel);
         }
 
         // 保存到数据库
-        Hib.queryOnly(session -> {
-            for (PushHistory history : histories) {
-                session.saveOrUpdate(history);
-            }
-        });
-
-        pusher.submit();
+        PushHistoryPersister.saveAll(histories);
     }
 
     /**
@@ -172,9 +204,6 @@ public class PushFactory {
      * @param insertCards 新的成员信息集合
      */
     public static void pushGroupMemberAdd(Set<GroupMember> oldMembers, List<GroupMemberCard> insertCards) {
-        // 发送者
-        PushDispatcher pusher = new PushDispatcher();
-
         // 一个历史记录列表
         List<PushHistory> histories = new ArrayList<>();
 
@@ -182,17 +211,11 @@ public class PushFactory {
         String entity = TextUtil.toJson(insertCards);
 
         // 给每一个老用户构建一条信息
-        addGroupMembersPushModel(pusher, histories, oldMembers,
+        addGroupMembersPushModel(histories, oldMembers,
                 entity, PushModel.ENTITY_TYPE_ADD_GROUP_MEMBERS);
 
         // 保存到数据库
-        Hib.queryOnly(session -> {
-            for (PushHistory history : histories) {
-                session.save(history);
-            }
-        });
-
-        pusher.submit();
+        PushHistoryPersister.saveAll(histories);
     }
 
     /**
@@ -202,9 +225,6 @@ public class PushFactory {
      * @param userCard     用户信息
      */
     public static void pushGroupAdminJoin(Set<GroupMember> adminMembers, UserCard userCard) {
-        // 发送者
-        PushDispatcher pusher = new PushDispatcher();
-
         // 一个历史记录列表
         List<PushHistory> histories = new ArrayList<>();
 
@@ -212,17 +232,11 @@ public class PushFactory {
         String entity = TextUtil.toJson(userCard);
 
         // 给每一个管理员构建一条信息
-        addGroupMembersPushModel(pusher, histories, adminMembers,
+        addGroupMembersPushModel(histories, adminMembers,
                 entity, PushModel.ENTITY_TYPE_JOIN_GROUP);
 
         // 保存到数据库
-        Hib.queryOnly(session -> {
-            for (PushHistory history : histories) {
-                session.save(history);
-            }
-        });
-
-        pusher.submit();
+        PushHistoryPersister.saveAll(histories);
     }
 
     /**
@@ -240,14 +254,13 @@ public class PushFactory {
         history.setReceiverPushId(pushId); // 接受者当前的设备推送Id
 
         // 保存到数据库
-        Hib.queryOnly(session -> session.saveOrUpdate(history));
+        PushHistoryPersister.save(history);
 
-        PushDispatcher pusher = new PushDispatcher();
         PushModel pushModel = new PushModel();
-        pushModel.add(history.getEntityType(), history.getEntity());
+        pushModel.add(pushEntity(history));
 
-        pusher.add(user, pushModel);
-        pusher.submit();
+        // 推送到退出时的设备，推送时用户可能已经绑定了新的设备
+        PushCoalescer.add(pushId, pushModel);
     }
 
     /**
@@ -270,12 +283,41 @@ public class PushFactory {
         history.setReceiverPushId(receiver.getPushId()); // 接受者当前的设备推送Id
 
         // 保存到数据库
-        Hib.queryOnly(session -> session.save(history));
+        PushHistoryPersister.save(history);
 
-        PushDispatcher pusher = new PushDispatcher();
         PushModel pushModel = new PushModel()
-                .add(history.getEntityType(), history.getEntity());
-        pusher.add(receiver, pushModel);
-        pusher.submit();
+                .add(pushEntity(history));
+        PushCoalescer.add(receiver, pushModel);
+    }
+
+    // 一条推送记录单独的推送实体
+    private static PushModel.Entity pushEntity(PushHistory history) {
+        return pushEntity(history, new PushModel.Entity(history.getEntityType(), history.getEntity()));
+    }
+
+    /**
+     * 推送实体带上推送记录的Id，客户端收到推送后通过/msg/ack确认送达，之后同步时不再返回
+     * Id在推送前生成，和存储的记录一致
+     *
+     * @param history 推送记录
+     * @param shared  同一条消息所有接收者共用的实体
+     * @return 这个接收者的推送实体
+     */
+    private static PushModel.Entity pushEntity(PushHistory history, PushModel.Entity shared) {
+        if (history.getId() == null)
+            history.setId(TimeOrderedIdGenerator.next());
+        return shared.withId(history.getId());
+    }
+
+    public static long getInvalidPushCount() {
+        return invalidPushes.get();
+    }
+
+    public static long getNonePushCount() {
+        return nonePushes.get();
+    }
+
+    public static long getClosePushCount() {
+        return closePushes.get();
     }
 }
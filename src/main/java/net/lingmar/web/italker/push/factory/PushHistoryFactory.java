@@ -0,0 +1,64 @@
+package net.lingmar.web.italker.push.factory;
+
+import net.lingmar.web.italker.push.utils.Hib;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.query.Query;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+
+/**
+ * 推送记录的查询
+ */
+public class PushHistoryFactory {
+
+    /**
+     * 处理一条推送记录的接口
+     */
+    public interface RowHandler {
+        void handle(String id, int entityType, String entity, LocalDateTime createAt) throws IOException;
+    }
+
+    /**
+     * 按(createAt, id)的顺序遍历一个用户还没有送达的推送记录
+     * 使用(receiverId, arrivalAt, createAt, id)索引的范围查询，逐条读取，不加载整页的实体
+     *
+     * @param receiverId    接收者Id
+     * @param afterCreateAt 上一页最后一条记录的创建时间，为null时从头开始
+     * @param afterId       上一页最后一条记录的Id
+     * @param limit         最多的数量
+     * @param handler       处理每一条记录
+     * @return 是否成功
+     */
+    public static boolean scrollUndelivered(String receiverId, LocalDateTime afterCreateAt, String afterId,
+                                            int limit, RowHandler handler) {
+        Boolean result = Hib.queryReadOnly(session -> {
+            String hql = "select h.id, h.entityType, h.entity, h.createAt from PushHistory h " +
+                    "where h.receiverId=:receiverId and h.arrivalAt is null ";
+            if (afterCreateAt != null)
+                hql += "and (h.createAt>:createAt or (h.createAt=:createAt and h.id>:id)) ";
+            hql += "order by h.createAt, h.id";
+
+            Query<Object[]> query = session.createQuery(hql, Object[].class)
+                    .setParameter("receiverId", receiverId)
+                    .setMaxResults(limit);
+            if (afterCreateAt != null) {
+                query.setParameter("createAt", afterCreateAt)
+                        .setParameter("id", afterId);
+            }
+
+            try (ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    handler.handle((String) results.get(0), (int) results.get(1),
+                            (String) results.get(2), (LocalDateTime) results.get(3));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return true;
+        });
+        return result != null;
+    }
+}
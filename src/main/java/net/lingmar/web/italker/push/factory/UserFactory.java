@@ -1,30 +1,104 @@
 package net.lingmar.web.italker.push.factory;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
 import net.lingmar.web.italker.push.bean.db.User;
 import net.lingmar.web.italker.push.bean.db.UserFollow;
 import net.lingmar.web.italker.push.utils.Hib;
+import net.lingmar.web.italker.push.utils.NGramIndex;
 import net.lingmar.web.italker.push.utils.TextUtil;
-
+import org.hibernate.Session;
+
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class UserFactory {
+    // Token到用户信息的缓存，每个登录的请求都需要通过Token查询用户
+    // 最大数量：-Ditalker.auth.cacheSize，默认10000
+    // 过期时间：-Ditalker.auth.cacheExpire，单位秒，默认600
+    private static final Cache<String, User> tokenCache = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("italker.auth.cacheSize", 10000))
+            .expireAfterWrite(Long.getLong("italker.auth.cacheExpire", 600), TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    // 批量查询时每次IN查询的最大数量
+    private static final int BATCH_SIZE = Integer.getInteger("italker.user.batchSize", 500);
+
+    // 用户名字的搜索索引，只包含有头像与描述的用户，和数据库搜索的条件一致
+    private static final NGramIndex searchIndex = new NGramIndex("user");
+
+    // 相互关注时双方的粉丝数量与关注数量都+1，不读取再写回，不会丢失并发的修改
+    private static final String INCREASE_FOLLOW_SQL = "update TB_USER set " +
+            "followerCount = followerCount + 1, followingCount = followingCount + 1 where id in (?, ?)";
 
     // 通过Token字段查询用户信息
     public static User findByToken(String token) {
-        return Hib.query(session -> (User) session
-                .createQuery("from User where token=:token")
-                .setParameter("token", token)
-                .uniqueResult());
+        User user = tokenCache.getIfPresent(token);
+        // 缓存的用户Token已经发生变化，不能再使用
+        if (user != null && token.equals(user.getToken()))
+            return user;
+
+        user = Hib.queryReadOnly(session -> {
+            User result = (User) session
+                    .createQuery("from User where token=:token")
+                    .setParameter("token", token)
+                    .uniqueResult();
+            // 缓存的用户会被多个请求共用，不能和当前请求的Session绑定
+            if (result != null)
+                session.evict(result);
+            return result;
+        });
+
+        if (user != null) {
+            // 请求提交之后再缓存，请求失败时不保留
+            User cached = user;
+            Hib.afterCommit(() -> tokenCache.put(token, cached));
+        }
+        return user;
+    }
+
+    /**
+     * 使一个Token的缓存失效，用户信息发生变化时调用
+     * 提交之后再失效一次，清除请求期间通过afterCommit放入或者被其他请求重新缓存的旧信息
+     *
+     * @param token Token
+     */
+    private static void invalidateToken(String token) {
+        if (!Strings.isNullOrEmpty(token)) {
+            tokenCache.invalidate(token);
+            Hib.afterCommit(() -> tokenCache.invalidate(token));
+        }
+    }
+
+    /**
+     * 获取Token缓存的命中统计
+     *
+     * @return CacheStats
+     */
+    public static CacheStats tokenCacheStats() {
+        return tokenCache.stats();
     }
 
     // 通过Phone查找User
     public static User findByPhone(String phone) {
-        return Hib.query(session -> (User) session
+        return Hib.queryReadOnly(session -> (User) session
                 .createQuery("from User where phone=:inPhone")
                 .setParameter("inPhone", phone)
                 .uniqueResult());
@@ -32,7 +106,7 @@ public class UserFactory {
 
     // 通过Name查找User
     public static User findByName(String name) {
-        return Hib.query(session -> (User) session
+        return Hib.queryReadOnly(session -> (User) session
                 .createQuery("from User where name=:inName")
                 .setParameter("inName", name)
                 .uniqueResult());
@@ -40,7 +114,32 @@ public class UserFactory {
 
     // 通过Id查找User
     public static User findById(String id) {
-        return Hib.query(session -> session.get(User.class, id));
+        return Hib.queryReadOnly(session -> session.get(User.class, id));
+    }
+
+    /**
+     * 批量查询用户，每次IN查询最多-Ditalker.user.batchSize个Id，默认500
+     * 所有分批的查询在一个Session中完成
+     *
+     * @param ids 用户Id，重复的Id只查询一次
+     * @return 查询到的用户，不存在的Id会被忽略，查询失败返回null
+     */
+    @SuppressWarnings("unchecked")
+    public static List<User> findByIds(Collection<String> ids) {
+        List<String> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        if (distinctIds.isEmpty())
+            return new ArrayList<>();
+
+        return Hib.queryReadOnly(session -> {
+            List<User> users = new ArrayList<>();
+            for (List<String> chunk : Lists.partition(distinctIds, BATCH_SIZE)) {
+                users.addAll(session
+                        .createQuery("from User where id in (:ids)")
+                        .setParameterList("ids", chunk)
+                        .list());
+            }
+            return users;
+        });
     }
 
     /**
@@ -50,10 +149,17 @@ public class UserFactory {
      * @return User
      */
     public static User update(User user) {
-        return Hib.query(session -> {
-            session.saveOrUpdate(user);
-            return user;
-        });
+        // 传入的用户可能来自缓存或者只读的查询，使用merge避免和当前Session中的同一个用户冲突
+        // 关注数量的字段不会写入，不会覆盖并发关注时更新的计数
+        User result = Hib.query(session -> Hib.merge(session, user, user.getId()));
+
+        // 无论是否更新成功，缓存中的用户信息都可能已经被修改过
+        invalidateToken(user.getToken());
+        ValidatorCache.invalidateUser(user.getId());
+        // 注册与修改资料都会经过这里，同步更新搜索索引
+        if (result != null)
+            Hib.afterCommit(() -> indexUser(result));
+        return result;
     }
 
     /**
@@ -80,9 +186,13 @@ public class UserFactory {
                     .list();
 
             for (User u : userList) {
+                // 之前只读查询过的用户在Session中是只读的，修改前先设置为可以修改
+                session.setReadOnly(u, false);
                 // 更新为null
                 u.setPushId(null);
                 session.saveOrUpdate(u);
+                // 缓存中的用户信息不再有效
+                invalidateToken(u.getToken());
             }
         });
 
@@ -95,8 +205,9 @@ public class UserFactory {
             // 需要进行单点登录，让之前的设备退出账户
             // 给之前的设备推送一条退出消息
             if (Strings.isNullOrEmpty(user.getPushId())) {
-                // 推送一个退出消息
-                PushFactory.pushLogout(user, user.getPushId());
+                // 推送一个退出消息，绑定提交之后再推送
+                String oldPushId = user.getPushId();
+                Hib.afterCommit(() -> PushFactory.pushLogout(user, oldPushId));
             }
 
             user.setPushId(pushId);
@@ -108,7 +219,7 @@ public class UserFactory {
         String accountStr = account.trim();
         String passwordStr = encodePassword(password);
 
-        User user = Hib.query(session -> (User) session
+        User user = Hib.queryReadOnly(session -> (User) session
                 .createQuery("from User where phone=:phone and password=:password")
                 .setParameter("phone", accountStr)
                 .setParameter("password", passwordStr)
@@ -173,13 +284,17 @@ public class UserFactory {
      * @return User
      */
     private static User login(User user) {
+        String oldToken = user.getToken();
         // 使用一个随机的UUID值充当Token
         String newToken = UUID.randomUUID().toString();
         // 进行一次Base64格式化
         newToken = TextUtil.encodeBase64(newToken);
         user.setToken(newToken);
 
-        return update(user);
+        user = update(user);
+        // 旧的Token不能再通过缓存登录
+        invalidateToken(oldToken);
+        return user;
     }
 
     private static String encodePassword(String passWord) {
@@ -196,11 +311,11 @@ public class UserFactory {
      * @return List<User>
      */
     public static Set<User> contact(User self) {
-        return Hib.query(session -> {
-            // 重新加载一次用户信息到self中，和当前的session绑定
-            session.load(self, self.getId());
+        return Hib.queryReadOnly(session -> {
+            // 在当前的session中查询一次用户信息，self可能是缓存中共用的实例
+            User user = session.get(User.class, self.getId());
             // 获取我关注的人
-            Set<UserFollow> follows = self.getFollowing();
+            Set<UserFollow> follows = user.getFollowing();
 
             return follows.stream()
                     .map(UserFollow::getTarget)
@@ -208,9 +323,43 @@ public class UserFactory {
         });
     }
 
+    /**
+     * 获取某个时间之后有变化的联系人
+     * 包括这个时间之后新关注的人，以及资料在这个时间之后修改过的联系人
+     *
+     * @param self  User
+     * @param since 上次同步的时间
+     * @return 有变化的联系人，查询失败返回null
+     */
+    @SuppressWarnings("unchecked")
+    public static Set<User> contactSince(User self, LocalDateTime since) {
+        return Hib.queryReadOnly(session -> {
+            // 新的关注记录，使用(originId, updateAt)索引的范围查询
+            List<User> followed = (List<User>) session
+                    .createQuery("select t from UserFollow f join f.target t " +
+                            "where f.originId=:selfId and f.updateAt>:since")
+                    .setParameter("selfId", self.getId())
+                    .setParameter("since", since)
+                    .list();
+
+            // 资料有变化的联系人
+            List<User> updated = (List<User>) session
+                    .createQuery("from User u where u.updateAt>:since " +
+                            "and u.id in (select f.targetId from UserFollow f where f.originId=:selfId)")
+                    .setParameter("selfId", self.getId())
+                    .setParameter("since", since)
+                    .list();
+
+            Set<User> users = new HashSet<>(followed);
+            users.addAll(updated);
+            return users;
+        });
+    }
+
     /**
      * 关注人的操作
      * 被关注人同意操作简化为双方同时关注的操作
+     * 传入的用户可能是多个请求共用的缓存，不做修改，需要最新的关注数量时重新查询
      *
      * @param origin 发起者
      * @param target 被关注的人
@@ -225,28 +374,117 @@ public class UserFactory {
             return follow.getTarget();
         }
 
-        return Hib.query(session -> {
-            // 想要操作懒加载数据，需要重新load一次
-            session.load(origin, origin.getId());
-            session.load(target, target.getId());
+        User result = Hib.query(session -> {
+            // 按Id的顺序锁定两个用户的记录，避免相互关注时死锁，同时读取最新的关注数量
+            Map<String, int[]> counts = new HashMap<>();
+            String[] ids = {origin.getId(), target.getId()};
+            Arrays.sort(ids);
+            for (String id : ids) {
+                counts.put(id, lockFollowCounts(session, id));
+            }
+
+            // 加锁后再检查一次，并发的请求可能已经完成了关注
+            UserFollow exist = (UserFollow) session
+                    .createQuery("from UserFollow where originId=:originId and targetId=:targetId")
+                    .setParameter("originId", origin.getId())
+                    .setParameter("targetId", target.getId())
+                    .setMaxResults(1)
+                    .uniqueResult();
+            if (exist != null)
+                return exist.getTarget();
+
+            // 想要操作懒加载数据，需要在当前session中重新查询一次
+            User originUser = session.get(User.class, origin.getId());
+            User targetUser = session.get(User.class, target.getId());
 
             // 我关注他的时候，他也同时关注了我
             // 同时进行两条UserFollow的操作
             UserFollow originFollow = new UserFollow();
-            originFollow.setOrigin(origin);
-            originFollow.setTarget(target);
+            originFollow.setOrigin(originUser);
+            originFollow.setTarget(targetUser);
             // 备注是我对他的备注，他对我并没有备注
             originFollow.setAlias(alias);
 
             UserFollow targetFollow = new UserFollow();
-            targetFollow.setOrigin(target);
-            targetFollow.setTarget(origin);
+            targetFollow.setOrigin(targetUser);
+            targetFollow.setTarget(originUser);
 
             session.save(originFollow);
             session.save(targetFollow);
 
-            return target;
+            // 每条关注记录：发起者的关注数量+1，被关注者的粉丝数量+1
+            // 两条记录使得双方的两个数量都+1，在数据库中直接累加
+            session.doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(INCREASE_FOLLOW_SQL)) {
+                    statement.setString(1, ids[0]);
+                    statement.setString(2, ids[1]);
+                    statement.executeUpdate();
+                }
+            });
+
+            // 计数的字段不会写入，只更新Session中的实体，返回的信息使用最新的数量
+            int[] originCounts = counts.get(origin.getId());
+            int[] targetCounts = counts.get(target.getId());
+            originUser.setFollowerCount(originCounts[0] + 1);
+            originUser.setFollowingCount(originCounts[1] + 1);
+            targetUser.setFollowerCount(targetCounts[0] + 1);
+            targetUser.setFollowingCount(targetCounts[1] + 1);
+
+            return targetUser;
         });
+
+        if (result != null) {
+            Hib.afterCommit(() -> {
+                // 双方同时关注，提交之后更新两个用户的关注索引
+                FollowIndex.add(origin.getId(), target.getId());
+                FollowIndex.add(target.getId(), origin.getId());
+                // 直接修改了数据库，二级缓存中的用户不再有效
+                Hib.evict(User.class, origin.getId());
+                Hib.evict(User.class, target.getId());
+            });
+        }
+
+        // 缓存中两个用户的关注数量已经变化
+        invalidateToken(origin.getToken());
+        invalidateToken(target.getToken());
+        ValidatorCache.invalidateUser(origin.getId());
+        ValidatorCache.invalidateUser(target.getId());
+        return result;
+    }
+
+    /**
+     * 锁定一个用户的记录，并读取数据库中最新的关注数量
+     * 只在关注时使用，让同一个用户的并发关注排队；锁在当前事务结束时释放
+     *
+     * @param session 当前的Session
+     * @param userId  用户Id
+     * @return [粉丝数量, 关注数量]，用户不存在时返回null
+     */
+    private static int[] lockFollowCounts(Session session, String userId) {
+        // HQL只查询字段时不会加锁，直接使用select for update
+        Object[] row = (Object[]) session
+                .createNativeQuery("select followerCount, followingCount from TB_USER where id=:id for update")
+                .setParameter("id", userId)
+                .uniqueResult();
+        if (row == null)
+            return null;
+        return new int[]{((Number) row[0]).intValue(), ((Number) row[1]).intValue()};
+    }
+
+    /**
+     * 根据关注记录重新计算所有用户的关注数量
+     * 用于新增计数字段后初始化已有的数据，启动时通过-Ditalker.user.rebuildFollowCounts=true执行
+     * 同时更新修改时间，让客户端的缓存与增量同步重新获取用户信息
+     */
+    public static void rebuildFollowCounts() {
+        Hib.queryOnly(session -> session
+                .createNativeQuery("update TB_USER set " +
+                        "followerCount = (select count(*) from TB_USER_FOLLOW f where f.targetId = TB_USER.id), " +
+                        "followingCount = (select count(*) from TB_USER_FOLLOW f where f.originId = TB_USER.id), " +
+                        "updateAt = current_timestamp")
+                .executeUpdate());
+        tokenCache.invalidateAll();
+        ValidatorCache.invalidateAll();
     }
 
     /**
@@ -257,31 +495,135 @@ public class UserFactory {
      * @return 返回中间类UserFollow
      */
     public static UserFollow getUserFollow(final User origin, final User target) {
-        return Hib.query(session -> (UserFollow) session.createQuery("from UserFollow where originId=:originId and targetId=:targetId")
+        return Hib.queryReadOnly(session -> (UserFollow) session.createQuery("from UserFollow where originId=:originId and targetId=:targetId")
                 .setParameter("originId", origin.getId())
                 .setParameter("targetId", target.getId())
                 .setMaxResults(1)
                 .uniqueResult());
     }
 
+    /**
+     * 判断一个人是否已经关注了另一个人
+     * 通过关注索引判断，索引加载失败时查询数据库
+     *
+     * @param origin 发起者
+     * @param target 被关注人
+     * @return 是否已经关注
+     */
+    public static boolean isFollowing(final User origin, final User target) {
+        return isFollowing(origin, target.getId());
+    }
+
+    /**
+     * 判断一个人是否已经关注了另一个人
+     *
+     * @param origin   发起者
+     * @param targetId 被关注人的Id
+     * @return 是否已经关注
+     */
+    public static boolean isFollowing(final User origin, final String targetId) {
+        Set<String> following = FollowIndex.following(origin.getId());
+        if (following == null) {
+            Long count = Hib.queryReadOnly(session -> (Long) session
+                    .createQuery("select count(*) from UserFollow where originId=:originId and targetId=:targetId")
+                    .setParameter("originId", origin.getId())
+                    .setParameter("targetId", targetId)
+                    .uniqueResult());
+            return count != null && count > 0;
+        }
+        return following.contains(targetId);
+    }
+
+    /**
+     * 从一组用户Id中筛选出已经关注的人
+     *
+     * @param origin  发起者
+     * @param userIds 需要判断的用户Id
+     * @return 已关注的用户Id
+     */
+    public static Set<String> filterFollowing(final User origin, final Collection<String> userIds) {
+        Set<String> following = FollowIndex.following(origin.getId());
+        if (following == null) {
+            // 索引加载失败时查询我的联系人
+            Set<User> contacts = contact(origin);
+            following = contacts == null ? new HashSet<>() : contacts.stream()
+                    .map(User::getId)
+                    .collect(Collectors.toSet());
+        }
+        final Set<String> follows = following;
+        return userIds.stream()
+                .filter(follows::contains)
+                .collect(Collectors.toSet());
+    }
+
     /**
      * 搜索联系人的实现
      *
      * @param name 查询的name，允许为空
-     * @return 查询到的用户集合，如果name为空，则返回最近的用户
+     * @return 查询到的用户列表，使用索引时按匹配程度排序，如果name为空，则返回最近的用户，查询失败返回null
      */
     @SuppressWarnings("unchecked")
-    public static Set<User> search(String name) {
+    public static List<User> search(String name) {
+        if (!Strings.isNullOrEmpty(name)) {
+            // 优先使用内存中的索引，还没有加载完成时查询数据库
+            List<String> ids = searchIndex.search(name, 20);
+            if (ids != null) {
+                if (ids.isEmpty())
+                    return new ArrayList<>();
+                List<User> users = Hib.queryReadOnly(session -> (List<User>) session
+                        .createQuery("from User where id in (:ids)")
+                        .setParameterList("ids", ids)
+                        .list());
+                if (users == null)
+                    return null;
+                // 保持索引中的排序
+                users.sort(Comparator.comparingInt(user -> ids.indexOf(user.getId())));
+                return users;
+            }
+        }
+
         if (Strings.isNullOrEmpty(name)) {
             name = "";  // 保证不能为null的情况
         }
         final String searchName = "%" + name + "%";
 
-        return new HashSet<>(Hib.query(session -> (List<User>) session.createQuery("from User where lower(name) like :name " +
+        return Hib.queryReadOnly(session -> (List<User>) session.createQuery("from User where lower(name) like :name " +
                 "and portrait is not null " +
                 "and description is not null ")
                 .setParameter("name", searchName)
                 .setMaxResults(20)
+                .list());
+    }
+
+    /**
+     * 同步一个用户的搜索索引，有头像与描述时才能被搜索到
+     *
+     * @param user User
+     */
+    private static void indexUser(User user) {
+        if (user.getPortrait() != null && user.getDescription() != null) {
+            searchIndex.put(user.getId(), user.getName());
+        } else {
+            searchIndex.remove(user.getId());
+        }
+    }
+
+    /**
+     * 从数据库加载用户名字的搜索索引，在启动时调用
+     */
+    @SuppressWarnings("unchecked")
+    public static void buildSearchIndex() {
+        Long total = Hib.queryReadOnly(session -> (Long) session
+                .createQuery("select count(*) from User where portrait is not null and description is not null")
+                .uniqueResult());
+        if (total == null)
+            return;
+
+        searchIndex.build(total, (offset, limit) -> Hib.queryReadOnly(session -> (List<Object[]>) session
+                .createQuery("select u.id, u.name from User u " +
+                        "where u.portrait is not null and u.description is not null order by u.id")
+                .setFirstResult(offset)
+                .setMaxResults(limit)
                 .list()));
     }
 }
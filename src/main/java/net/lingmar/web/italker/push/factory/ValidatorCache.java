@@ -0,0 +1,137 @@
+package net.lingmar.web.italker.push.factory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.utils.Hib;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户、群与群成员卡片的校验值缓存，用于生成ETag
+ * 校验值由实体的updateAt组成，只查询时间字段，不加载完整的实体；
+ * 缓存中没有时查询一次，实体修改时使其失效
+ * <p>
+ * 在工作单元中修改时，失效早于事务提交，期间其他请求可能重新缓存了旧的值，
+ * 所以过期时间不宜过长
+ * 最多缓存的数量：-Ditalker.etag.cacheSize，默认20000
+ * 过期时间：-Ditalker.etag.cacheExpire，单位秒，默认60
+ */
+public class ValidatorCache {
+    private static final Cache<String, String> cache = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("italker.etag.cacheSize", 20000))
+            .expireAfterWrite(Long.getLong("italker.etag.cacheExpire", 60), TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    /**
+     * 获取一个用户卡片的校验值
+     * 卡片中的isFollow与查看的人有关，也加入校验值
+     *
+     * @param self   查看的人
+     * @param userId 用户Id
+     * @return 校验值，用户不存在或者查询失败时返回null
+     */
+    public static String userCard(User self, String userId) {
+        String value = get("user:" + userId, () -> Hib.queryReadOnly(session -> session
+                .createQuery("select u.updateAt from User u where u.id=:id")
+                .setParameter("id", userId)
+                .uniqueResult()));
+        if (value == null)
+            return null;
+
+        if (self.getId().equalsIgnoreCase(userId))
+            return value + ":self";
+        return value + ":" + UserFactory.isFollowing(self, userId);
+    }
+
+    /**
+     * 获取一个群卡片的校验值
+     * 卡片中的通知级别与加入时间与查看的成员有关，也加入校验值
+     *
+     * @param self    查看的人
+     * @param groupId 群Id
+     * @return 校验值，不是群成员或者查询失败时返回null
+     */
+    public static String groupCard(User self, String groupId) {
+        MembershipCache.Membership membership = membership(self, groupId);
+        if (membership == null)
+            return null;
+
+        String value = get("group:" + groupId, () -> Hib.queryReadOnly(session -> session
+                .createQuery("select g.updateAt from Group g where g.id=:id")
+                .setParameter("id", groupId)
+                .uniqueResult()));
+        if (value == null)
+            return null;
+
+        return value + ":" + membership.getMemberId() + ":" + membership.getNotifyLevel();
+    }
+
+    /**
+     * 获取一个群的成员列表的校验值，由最后修改的成员时间与成员数量组成
+     *
+     * @param self    查看的人
+     * @param groupId 群Id
+     * @return 校验值，不是群成员或者查询失败时返回null
+     */
+    public static String memberCards(User self, String groupId) {
+        if (membership(self, groupId) == null)
+            return null;
+
+        return get("members:" + groupId, () -> {
+            Object[] row = Hib.queryReadOnly(session -> (Object[]) session
+                    .createQuery("select max(gm.updateAt), count(gm) from GroupMember gm where gm.groupId=:id")
+                    .setParameter("id", groupId)
+                    .uniqueResult());
+            return row == null || row[0] == null ? null : row[0] + ":" + row[1];
+        });
+    }
+
+    private static MembershipCache.Membership membership(User self, String groupId) {
+        Map<String, MembershipCache.Membership> members = MembershipCache.get(groupId);
+        return members == null ? null : members.get(self.getId());
+    }
+
+    private interface Loader {
+        Object load();
+    }
+
+    private static String get(String key, Loader loader) {
+        try {
+            return cache.get(key, () -> {
+                Object value = loader.load();
+                // 没有查询到时不缓存
+                if (value == null)
+                    throw new Exception("Load validator failed: " + key);
+                return value.toString();
+            });
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    static void invalidateUser(String userId) {
+        cache.invalidate("user:" + userId);
+    }
+
+    static void invalidateMembers(String groupId) {
+        cache.invalidate("members:" + groupId);
+    }
+
+    static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * 获取缓存的命中统计
+     *
+     * @return CacheStats
+     */
+    public static CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,35 @@
+package net.lingmar.web.italker.push.provider;
+
+import net.lingmar.web.italker.push.bean.api.base.ResponseModel;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+
+/**
+ * 给支持条件请求的接口返回ETag
+ * 接口在请求中设置PROPERTY属性，成功返回时写入响应头；
+ * 业务错误同样以200返回，只有ResponseModel成功时才写入，错误的结果不能被缓存
+ * 客户端下次请求时通过If-None-Match带回，没有变化时直接返回304
+ */
+public class ETagFilter implements ContainerResponseFilter {
+    // 请求中保存ETag的属性名
+    public static final String PROPERTY = "italker.etag";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext,
+                       ContainerResponseContext responseContext) throws IOException {
+        Object tag = requestContext.getProperty(PROPERTY);
+        Object entity = responseContext.getEntity();
+        if (tag instanceof EntityTag
+                && responseContext.getStatus() == Response.Status.OK.getStatusCode()
+                && entity instanceof ResponseModel
+                && ((ResponseModel<?>) entity).isSucceed()) {
+            responseContext.getHeaders().putSingle(HttpHeaders.ETAG, tag);
+        }
+    }
+}
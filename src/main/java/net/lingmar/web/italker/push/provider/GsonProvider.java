@@ -2,6 +2,8 @@ package net.lingmar.web.italker.push.provider;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
@@ -16,8 +18,10 @@ import javax.ws.rs.ext.Provider;
 import java.io.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 用于设置Jersey的Json转换器
@@ -26,6 +30,10 @@ import java.time.LocalDateTime;
  * 该工具类完成了，把Http请求中的请求数据转换为Model实体，
  * 同时也实现了把返回的Model实体转换为Json字符串
  * 并输出到Http的返回体中。
+ * <p>
+ * 每种类型的TypeAdapter只查找一次并缓存，读写都经过缓冲流；
+ * 已经序列化好的Json可以使用{@link RawJson}包装后直接输出；
+ * 数据较多的返回可以使用{@link StreamingJson}边查询边输出
  *
  * @param <T> 任意类型范型定义
  */
@@ -35,6 +43,10 @@ import java.time.LocalDateTime;
 public class GsonProvider<T> implements MessageBodyReader<T>, MessageBodyWriter<T> {
     // 共用一个全局的Gson
     private static final Gson gson;
+    // 缓冲区大小
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // 按类型缓存的TypeAdapter
+    private static final Map<Type, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
 
     static {
         // Gson 初始化
@@ -47,6 +59,10 @@ public class GsonProvider<T> implements MessageBodyReader<T>, MessageBodyWriter<
                 .enableComplexMapKeySerialization();
         // 添加对Java8LocalDateTime时间类型的支持
         builder.registerTypeAdapter(LocalDateTime.class, new LocalDateTimeConverter());
+        // 已经序列化好的Json直接输出
+        builder.registerTypeAdapter(RawJson.class, new RawJson.Adapter());
+        // 边查询边输出的Json
+        builder.registerTypeAdapter(StreamingJson.class, new StreamingJson.Adapter());
         gson = builder.create();
     }
 
@@ -59,6 +75,18 @@ public class GsonProvider<T> implements MessageBodyReader<T>, MessageBodyWriter<
         return gson;
     }
 
+    /**
+     * 取得一个类型的TypeAdapter，每种类型只向Gson查找一次
+     *
+     * @param type 类型
+     * @param <A>  范型
+     * @return TypeAdapter
+     */
+    @SuppressWarnings("unchecked")
+    public static <A> TypeAdapter<A> getAdapter(Type type) {
+        return (TypeAdapter<A>) adapters.computeIfAbsent(type, key -> gson.getAdapter(TypeToken.get(key)));
+    }
+
     public GsonProvider() {
     }
 
@@ -75,8 +103,17 @@ public class GsonProvider<T> implements MessageBodyReader<T>, MessageBodyWriter<
     public T readFrom(Class<T> type, Type genericType, Annotation[] annotations,
                       MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
                       InputStream entityStream) throws IOException, WebApplicationException {
-        try (JsonReader reader = new JsonReader(new InputStreamReader(entityStream, "UTF-8"))) {
-            return gson.fromJson(reader, genericType);
+        try (JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(entityStream, StandardCharsets.UTF_8), BUFFER_SIZE))) {
+            // 与Gson.fromJson保持一致：宽松解析，空的请求体返回null
+            reader.setLenient(true);
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                return null;
+            }
+            TypeAdapter<T> adapter = getAdapter(genericType);
+            return adapter.read(reader);
         }
     }
 
@@ -99,10 +136,15 @@ public class GsonProvider<T> implements MessageBodyReader<T>, MessageBodyWriter<
     public void writeTo(T t, Class<?> type, Type genericType, Annotation[] annotations,
                         MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
                         OutputStream entityStream) throws IOException, WebApplicationException {
-        //TypeAdapter<T> adapter = gson.getAdapter((TypeToken<T>) TypeToken.get(genericType));
-        try (JsonWriter jsonWriter = gson.newJsonWriter(new OutputStreamWriter(entityStream, Charset.forName("UTF-8")))) {
-            gson.toJson(t, genericType, jsonWriter);
-            jsonWriter.close();
-        }
+        TypeAdapter<T> adapter = getAdapter(genericType);
+        JsonWriter jsonWriter = gson.newJsonWriter(new BufferedWriter(
+                new OutputStreamWriter(entityStream, StandardCharsets.UTF_8), BUFFER_SIZE));
+        // 与Gson.toJson保持一致：宽松输出，转义Html字符
+        jsonWriter.setLenient(true);
+        jsonWriter.setHtmlSafe(gson.htmlSafe());
+        adapter.write(jsonWriter, t);
+        // 写入失败时不关闭，缓冲区中不完整的内容不再输出，
+        // 还没有开始发送时由Jersey返回服务器错误，已经开始发送时客户端收到的数据不完整
+        jsonWriter.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package net.lingmar.web.italker.push.provider;
+
+import net.lingmar.web.italker.push.factory.GroupFactory;
+import net.lingmar.web.italker.push.factory.UserFactory;
+import net.lingmar.web.italker.push.utils.PushAckBuffer;
+import net.lingmar.web.italker.push.utils.PushCoalescer;
+import net.lingmar.web.italker.push.utils.PushHistoryPersister;
+import net.lingmar.web.italker.push.utils.PushQueue;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
+/**
+ * 监听Jersey容器的启动与关闭
+ * 用于初始化和释放后台的资源
+ */
+public class LifecycleListener implements ContainerLifecycleListener {
+
+    @Override
+    public void onStartup(Container container) {
+        // 新增关注数量字段后，需要根据已有的关注记录初始化一次
+        if (Boolean.getBoolean("italker.user.rebuildFollowCounts"))
+            UserFactory.rebuildFollowCounts();
+
+        // 在后台加载用户与群名字的搜索索引，加载完成前搜索查询数据库
+        // 关闭：-Ditalker.search.index=false
+        if (Boolean.parseBoolean(System.getProperty("italker.search.index", "true"))) {
+            Thread thread = new Thread(() -> {
+                UserFactory.buildSearchIndex();
+                GroupFactory.buildSearchIndex();
+            }, "SearchIndexBuilder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void onReload(Container container) {
+    }
+
+    @Override
+    public void onShutdown(Container container) {
+        // 等待未完成的推送任务
+        PushQueue.shutdown(10 * 1000);
+        // 发送合并窗口中剩余的推送
+        PushCoalescer.shutdown();
+        // 写入剩余的推送记录
+        PushHistoryPersister.shutdown(10 * 1000);
+        // 写入剩余的送达确认
+        PushAckBuffer.shutdown(10 * 1000);
+    }
+}
@@ -0,0 +1,53 @@
+package net.lingmar.web.italker.push.provider;
+
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * 已经序列化好的Json片段
+ * 输出时原样写入，不再经过Gson的反射序列化，
+ * 用于同一个实体既要推送又要返回给客户端的情况，只需要序列化一次
+ */
+public class RawJson {
+    private final String json;
+
+    public RawJson(String json) {
+        this.json = json;
+    }
+
+    public static RawJson of(String json) {
+        return new RawJson(json);
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+
+    /**
+     * RawJson的转换器，在GsonProvider中注册
+     */
+    public static class Adapter extends TypeAdapter<RawJson> {
+        @Override
+        public void write(JsonWriter out, RawJson value) throws IOException {
+            if (value == null || value.json == null) {
+                out.nullValue();
+                return;
+            }
+            out.jsonValue(value.json);
+        }
+
+        @Override
+        public RawJson read(JsonReader in) throws IOException {
+            return new RawJson(new JsonParser().parse(in).toString());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.lingmar.web.italker.push.provider;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * 边查询边输出的Json
+ * 在序列化时才调用Writer写入数据，数据不需要全部加载到内存中，
+ * 写入的内容经过GsonProvider的缓冲流，缓冲区满时就开始输出到客户端
+ * <p>
+ * 写入时请求的工作单元已经结束，Writer中的查询使用单独的Session
+ */
+public class StreamingJson {
+    private final Writer writer;
+
+    public StreamingJson(Writer writer) {
+        this.writer = writer;
+    }
+
+    public static StreamingJson of(Writer writer) {
+        return new StreamingJson(writer);
+    }
+
+    /**
+     * 输出Json的接口
+     */
+    public interface Writer {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    /**
+     * StreamingJson的转换器，在GsonProvider中注册，只支持输出
+     */
+    public static class Adapter extends TypeAdapter<StreamingJson> {
+        @Override
+        public void write(JsonWriter out, StreamingJson value) throws IOException {
+            if (value == null || value.writer == null) {
+                out.nullValue();
+                return;
+            }
+            value.writer.write(out);
+        }
+
+        @Override
+        public StreamingJson read(JsonReader in) throws IOException {
+            throw new UnsupportedOperationException("StreamingJson can't be read.");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.lingmar.web.italker.push.provider;
+
+import net.lingmar.web.italker.push.bean.api.base.ResponseModel;
+import net.lingmar.web.italker.push.utils.Hib;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+
+/**
+ * 每个请求一个工作单元
+ * 请求开始时开启，请求中所有的数据库操作共用一个Session与事务，
+ * 返回时提交，服务器错误时回滚；
+ * 请求中有query失败或者提交失败时，之前的写入都已经回滚，返回服务器错误；
+ * 没有对应ExceptionMapper的异常不会经过返回的过滤器，在请求结束（FINISHED）时回滚，
+ * 不把Session、事务与连接留在线程中
+ * <p>
+ * 优先级高于AuthRequestFilter，Token查询也在同一个工作单元中
+ * 关闭：-Ditalker.hibernate.unitOfWork=false
+ */
+@Priority(Priorities.AUTHENTICATION)
+public class UnitOfWorkFilter implements ContainerRequestFilter, ContainerResponseFilter,
+        ApplicationEventListener {
+    private static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty("italker.hibernate.unitOfWork", "true"));
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        if (ENABLED)
+            Hib.beginUnitOfWork();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext,
+                       ContainerResponseContext responseContext) throws IOException {
+        boolean commit = responseContext.getStatus() < 500;
+        if (!Hib.endUnitOfWork(commit)) {
+            // 提交失败，返回的数据并没有写入数据库
+            responseContext.setStatus(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+            responseContext.setEntity(ResponseModel.buildServiceError());
+            // ETagFilter在这之前执行，错误的结果不能带有ETag
+            responseContext.getHeaders().remove(HttpHeaders.ETAG);
+        }
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        if (!ENABLED)
+            return null;
+
+        return event -> {
+            // 正常返回时已经在返回的过滤器中结束，这里只处理残留的工作单元
+            if (event.getType() == RequestEvent.Type.FINISHED)
+                Hib.endUnitOfWork(false);
+        };
+    }
+}
@@ -99,7 +99,11 @@ public class AccountService extends BaseService {
 
 //        User user = UserFactory.findByToken(token);
         User self = getSelf();
-        return bind(self, pushId);
+        // 缓存的用户被同一个Token的所有请求共用，在重新查询的用户上修改
+        User user = UserFactory.findById(self.getId());
+        if (user == null)
+            return ResponseModel.buildServiceError();
+        return bind(user, pushId);
     }
 
     /**
@@ -1,18 +1,52 @@
 package net.lingmar.web.italker.push.service;
 
+import com.google.common.hash.Hashing;
 import net.lingmar.web.italker.push.bean.db.User;
+import net.lingmar.web.italker.push.provider.ETagFilter;
 
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
+import java.nio.charset.StandardCharsets;
 
 public class BaseService {
 
     @Context
     protected SecurityContext securityContext;    // 拦截器返回的上下文
 
+    @Context
+    protected Request request;
+
+    @Context
+    protected ContainerRequestContext requestContext;
+
     // 用户修改信息接口
     // 返回用户的个人信息
     protected User getSelf() {
         return (User) securityContext.getUserPrincipal();
     }
+
+    /**
+     * 条件请求的检查，在构建返回数据之前调用
+     * 和客户端带来的If-None-Match一致时直接返回304，不再继续处理；
+     * 否则在返回时通过ETagFilter写入ETag
+     *
+     * @param validator 校验值，为null时不做处理
+     */
+    protected void checkNotModified(String validator) {
+        if (validator == null)
+            return;
+
+        EntityTag tag = new EntityTag(Hashing.murmur3_128()
+                .hashString(validator, StandardCharsets.UTF_8).toString());
+        Response.ResponseBuilder builder = request.evaluatePreconditions(tag);
+        if (builder != null)
+            throw new WebApplicationException(builder.build());
+
+        requestContext.setProperty(ETagFilter.PROPERTY, tag);
+    }
 }
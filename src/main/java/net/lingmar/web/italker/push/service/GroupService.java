@@ -16,13 +16,14 @@ import net.lingmar.web.italker.push.bean.db.GroupMember;
 import net.lingmar.web.italker.push.bean.db.User;
 import net.lingmar.web.italker.push.factory.*;
 import net.lingmar.web.italker.push.provider.LocalDateTimeConverter;
+import net.lingmar.web.italker.push.utils.Hib;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -39,7 +40,7 @@ public class GroupService extends BaseService {
         // 创建者
         User creator = getSelf();
         // 将创建者移出用户列表
-        model.getUsers().remove(creator);
+        model.getUsers().remove(creator.getId());
         if (model.getUsers().size() == 0)
             return ResponseModel.buildNoPermissionError();
 
@@ -47,13 +48,10 @@ public class GroupService extends BaseService {
         if (GroupFactory.findByName(model.getName()) != null)
             return ResponseModel.buildHaveNameError();
 
-        List<User> users = new ArrayList<>();
-        for (String s : model.getUsers()) {
-            User user = UserFactory.findById(s);
-            if (user == null)
-                continue;
-            users.add(user);
-        }
+        // 一次批量查询所有的成员，不存在的用户会被忽略
+        List<User> users = UserFactory.findByIds(model.getUsers());
+        if (users == null)
+            return ResponseModel.buildServiceError();
         // 没有一个成员
         if (users.size() == 0)
             return ResponseModel.buildNoPermissionError();
@@ -74,8 +72,9 @@ public class GroupService extends BaseService {
         members = members.stream()
                 .filter(groupMember -> !groupMember.getId().equalsIgnoreCase(creatorMember.getId()))
                 .collect(Collectors.toSet());
-        // 开始发起推送
-        PushFactory.pushJoinGroup(members);
+        // 开始发起推送，创建提交之后再推送
+        Set<GroupMember> receivers = members;
+        Hib.afterCommit(() -> PushFactory.pushJoinGroup(receivers));
 
         return ResponseModel.buildOk(new GroupCard(creatorMember));
     }
@@ -95,11 +94,16 @@ public class GroupService extends BaseService {
         User self = getSelf();
         List<Group> groups = GroupFactory.search(name);
         if (groups != null && groups.size() > 0) {
+            // 一次查询我在这些群中的成员信息
+            Map<String, GroupMember> members = GroupFactory.getMembers(self, groups.stream()
+                    .map(Group::getId)
+                    .collect(Collectors.toList()));
+            if (members == null)
+                return ResponseModel.buildServiceError();
+
             List<GroupCard> groupCards = groups.stream()
-                    .map(group -> {
-                        GroupMember member = GroupFactory.getMember(self.getId(), group.getId());
-                        return new GroupCard(group, member);
-                    }).collect(Collectors.toList());
+                    .map(group -> new GroupCard(group, members.get(group.getId())))
+                    .collect(Collectors.toList());
             return ResponseModel.buildOk(groupCards);
         }
 
@@ -131,14 +135,13 @@ public class GroupService extends BaseService {
             }
         }
 
-        Set<GroupMember> members = GroupFactory.getMembers(self);
+        // 传递了时间时只查询这个时间之后变化的成员信息
+        Set<GroupMember> members = dateTime == null ? GroupFactory.getMembers(self)
+                : GroupFactory.getMembers(self, dateTime);
         if (members == null)
             return ResponseModel.buildOk();
 
-        final LocalDateTime finalDateTime = dateTime;
         List<GroupCard> groupCards = members.stream()
-                .filter(groupMember -> finalDateTime == null ||
-                        groupMember.getUpdateAt().isAfter(finalDateTime))
                 .map(GroupCard::new)
                 .collect(Collectors.toList());
 
@@ -160,6 +163,9 @@ public class GroupService extends BaseService {
             return ResponseModel.buildParameterError();
 
         User self = getSelf();
+        // 没有变化时直接返回304
+        checkNotModified(ValidatorCache.groupCard(self, id));
+
         GroupMember member = GroupFactory.getMember(self.getId(), id);
         if (member == null)
             return ResponseModel.buildNotFoundGroupError(null);
@@ -179,6 +185,8 @@ public class GroupService extends BaseService {
     @Produces(MediaType.APPLICATION_JSON)
     public ResponseModel<List<GroupMemberCard>> members(@PathParam("groupId") String groupId) {
         User self = getSelf();
+        // 没有变化时直接返回304
+        checkNotModified(ValidatorCache.memberCards(self, groupId));
 
         // 检查群
         Group group = GroupFactory.findById(groupId);
@@ -238,16 +246,14 @@ public class GroupService extends BaseService {
                 .map(GroupMember::getUserId)
                 .collect(Collectors.toSet());
 
-        Set<User> insertUsers = new HashSet<>();
-        for (String s : model.getUsers()) {
-            User user = UserFactory.findById(s);
-            if (user == null)
-                continue;
-            if (oldMemberUserIds.contains(s))
-                continue;
-
-            insertUsers.add(user);
-        }
+        // 排除已经是成员的用户后，一次批量查询
+        List<String> insertUserIds = model.getUsers().stream()
+                .filter(userId -> !oldMemberUserIds.contains(userId))
+                .collect(Collectors.toList());
+        List<User> users = UserFactory.findByIds(insertUserIds);
+        if (users == null)
+            return ResponseModel.buildServiceError();
+        Set<User> insertUsers = new HashSet<>(users);
         // 没有一个新增的成员
         if (insertUsers.size() == 0)
             return ResponseModel.buildParameterError();
@@ -261,11 +267,13 @@ public class GroupService extends BaseService {
                 .map(GroupMemberCard::new)
                 .collect(Collectors.toList());
 
-        // 通知操作
-        // 1.通知新增的成员，被加入群
-        PushFactory.pushJoinGroup(insertMembers);
-        // 2.通知老的成员，有XXX加入了群
-        PushFactory.pushGroupMemberAdd(oldMembers, insertCards);
+        // 通知操作，添加提交之后再推送
+        Hib.afterCommit(() -> {
+            // 1.通知新增的成员，被加入群
+            PushFactory.pushJoinGroup(insertMembers);
+            // 2.通知老的成员，有XXX加入了群
+            PushFactory.pushGroupMemberAdd(oldMembers, insertCards);
+        });
 
         return ResponseModel.buildOk(insertCards);
     }
@@ -291,9 +299,11 @@ public class GroupService extends BaseService {
         if (member == null)
             return ResponseModel.buildNotFoundGroupMemberError(null);
 
-        // 筛选出群里的管理员ID
-        Set<String> admins = getAdminMembers(member.getGroup())
-                .stream()
+        // 查询群里的管理员ID
+        Set<GroupMember> adminMembers = GroupFactory.getAdmins(member.getGroupId());
+        if (adminMembers == null)
+            return ResponseModel.buildServiceError();
+        Set<String> admins = adminMembers.stream()
                 .map(GroupMember::getUserId)
                 .collect(Collectors.toSet());
         // 请求的人必须是管理员或成员本人之一
@@ -341,26 +351,17 @@ public class GroupService extends BaseService {
         if (apply == null)
             return ResponseModel.buildServiceError();
 
-        // 筛选出群里的管理员
-        Set<GroupMember> adminMembers = getAdminMembers(group);
-        // 通知管理员，有用户想要加入群
-        PushFactory.pushGroupAdminJoin(adminMembers, new UserCard(self));
+        // 查询群里的管理员
+        Set<GroupMember> adminMembers = GroupFactory.getAdmins(groupId);
+        if (adminMembers == null)
+            return ResponseModel.buildServiceError();
+        // 通知管理员，有用户想要加入群，申请提交之后再推送
+        UserCard selfCard = new UserCard(self);
+        Hib.afterCommit(() -> PushFactory.pushGroupAdminJoin(adminMembers, selfCard));
 
         // 转换
         ApplyCard applyCard = new ApplyCard(apply);
 
         return ResponseModel.buildOk(applyCard);
     }
-
-    // 筛选出群里的管理员
-    private Set<GroupMember> getAdminMembers(Group group) {
-        Set<GroupMember> adminMembers = new HashSet<>();
-        Set<GroupMember> members = GroupFactory.getMembers(group);
-        for (GroupMember groupMember : members) {
-            if (groupMember.getPermissionType() != GroupMember.PERMISSION_TYPE_NONE)
-                adminMembers.add(groupMember);
-        }
-
-        return adminMembers;
-    }
 }
@@ -4,6 +4,7 @@ import com.google.common.base.Strings;
 import net.lingmar.web.italker.push.bean.api.account.AccountRspModel;
 import net.lingmar.web.italker.push.bean.api.account.LoginModel;
 import net.lingmar.web.italker.push.bean.api.base.ResponseModel;
+import net.lingmar.web.italker.push.bean.api.message.MessageAckModel;
 import net.lingmar.web.italker.push.bean.api.message.MessageCreateModel;
 import net.lingmar.web.italker.push.bean.card.MessageCard;
 import net.lingmar.web.italker.push.bean.db.Group;
@@ -12,35 +13,55 @@ import net.lingmar.web.italker.push.bean.db.User;
 import net.lingmar.web.italker.push.factory.GroupFactory;
 import net.lingmar.web.italker.push.factory.MessageFactory;
 import net.lingmar.web.italker.push.factory.PushFactory;
+import net.lingmar.web.italker.push.factory.PushHistoryFactory;
 import net.lingmar.web.italker.push.factory.UserFactory;
+import net.lingmar.web.italker.push.provider.LocalDateTimeConverter;
+import net.lingmar.web.italker.push.provider.RawJson;
+import net.lingmar.web.italker.push.provider.StreamingJson;
+import net.lingmar.web.italker.push.utils.Hib;
+import net.lingmar.web.italker.push.utils.PushAckBuffer;
+import net.lingmar.web.italker.push.utils.PushQueue;
+import net.lingmar.web.italker.push.utils.TextUtil;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.time.LocalDateTime;
 
 /**
  * 消息发送的入口
  */
 @Path("/msg")
 public class MessageService extends BaseService {
+    // 拉取推送记录时默认每页的数量
+    private static final int PAGE_SIZE = 50;
+    // 拉取推送记录时每页最多的数量
+    private static final int MAX_PAGE_SIZE = 200;
+    // 推送记录的createAt在构建时生成，由PushHistoryPersister异步写入，
+    // 最后一页的cursor最多只前进到这个时间（秒）之前，下次同步时重新检查较晚写入的记录
+    private static final long SYNC_LAG = 30;
 
     // 发送一条消息到服务器
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public ResponseModel<MessageCard> login(MessageCreateModel model) {
+    public ResponseModel<RawJson> login(MessageCreateModel model) {
         if (!MessageCreateModel.check(model)) {
             return ResponseModel.buildParameterError();
         }
 
         User self = getSelf();
 
-        // 查询是否已经在数据库中
-        Message message = MessageFactory.findById(model.getId());
+        // 重复提交的消息直接返回，只检查最近保存的消息，不查询数据库
+        Message message = MessageFactory.findRecent(model.getId());
         if(message != null)
-            return ResponseModel.buildOk(new MessageCard(message));
+            return buildExistResponse(self, message);
 
         if(model.getReceiverType() == Message.RECEIVER_TYPE_GROUP) {
             return pushToGroup(self, model);
@@ -49,8 +70,107 @@ public class MessageService extends BaseService {
         }
     }
 
+    /**
+     * 拉取还没有送达的推送记录，用于推送丢失时补齐消息
+     * 推送的实体带有推送记录的Id，客户端收到推送后通过/msg/ack确认，
+     * 这里只返回还没有确认的记录，也就是丢失或者还没有确认的推送
+     * 按(createAt, id)分页，结果边查询边输出
+     * 查询失败时中断输出，客户端收到服务器错误或者不完整的数据，不会收到成功的一页
+     * <p>
+     * 最后一页（more为false）的cursor不超过当前时间之前SYNC_LAG秒，
+     * 下次同步时可能再次返回已经返回过的记录，客户端按Id去重；
+     * 写入延迟超过SYNC_LAG的记录只有从空的cursor重新同步时才能取得，
+     * 已经确认的记录不会再返回，所以从头同步的代价只与未送达的数量有关
+     *
+     * @param cursor 上一页返回的cursor，不传递时从头开始
+     * @param size   每页的数量，默认PAGE_SIZE，最多MAX_PAGE_SIZE
+     * @return items：推送记录，格式和推送的实体一致；cursor：下一页的cursor；more：是否还有下一页
+     */
+    @GET
+    @Path("/sync")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public ResponseModel<StreamingJson> sync(@QueryParam("cursor") String cursor,
+                                             @DefaultValue("0") @QueryParam("size") int size) {
+        User self = getSelf();
+
+        // cursor为上一页最后一条记录的"createAt,id"，时间保留完整的精度，不使用返回数据的格式
+        LocalDateTime afterCreateAt = null;
+        String afterId = null;
+        if (!Strings.isNullOrEmpty(cursor)) {
+            int split = cursor.indexOf(',');
+            if (split < 0)
+                return ResponseModel.buildParameterError();
+            try {
+                afterCreateAt = LocalDateTime.parse(cursor.substring(0, split));
+            } catch (Exception e) {
+                return ResponseModel.buildParameterError();
+            }
+            afterId = cursor.substring(split + 1);
+        }
+
+        final int limit = size <= 0 ? PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+        final LocalDateTime fromCreateAt = afterCreateAt;
+        final String fromId = afterId;
+        return ResponseModel.buildOk(StreamingJson.of(out -> {
+            String[] next = {cursor};
+            LocalDateTime[] last = {fromCreateAt};
+            int[] count = {0};
+
+            out.beginObject();
+            out.name("items").beginArray();
+            boolean success = PushHistoryFactory.scrollUndelivered(self.getId(), fromCreateAt, fromId, limit,
+                    (id, entityType, entity, createAt) -> {
+                        out.beginObject();
+                        out.name("id").value(id);
+                        out.name("type").value(entityType);
+                        out.name("content").value(entity);
+                        out.name("createAt").value(createAt.format(LocalDateTimeConverter.FORMATTER));
+                        out.endObject();
+
+                        next[0] = createAt + "," + id;
+                        last[0] = createAt;
+                        count[0]++;
+                    });
+            // 查询失败时不能返回成功的一页，中断输出
+            if (!success)
+                throw new IOException("Scroll push history failed.");
+            out.endArray();
+
+            boolean more = count[0] == limit;
+            LocalDateTime watermark = LocalDateTime.now().minusSeconds(SYNC_LAG);
+            if (!more && last[0] != null && last[0].isAfter(watermark)) {
+                // 最后一页，这段时间内还可能有较晚写入的记录，cursor退回到watermark
+                next[0] = watermark + ",";
+            }
+            out.name("cursor").value(next[0]);
+            out.name("more").value(more);
+            out.endObject();
+        }));
+    }
+
+    /**
+     * 确认收到了推送记录，可以一次确认多条
+     * 推送的实体与/msg/sync返回的记录都带有推送记录的Id，客户端收到后确认；
+     * 确认先进入队列，由后台批量写入送达时间，之后拉取时不再返回
+     *
+     * @param model 推送记录Id，最多MessageAckModel.MAX_SIZE条
+     * @return 是否接受了确认
+     */
+    @POST
+    @Path("/ack")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public ResponseModel<Void> ack(MessageAckModel model) {
+        if (!MessageAckModel.check(model))
+            return ResponseModel.buildParameterError();
+
+        PushAckBuffer.ack(getSelf().getId(), model.getIds());
+        return ResponseModel.buildOk();
+    }
+
     // 发送到人
-    private ResponseModel<MessageCard> pushToUser(User sender, MessageCreateModel model) {
+    private ResponseModel<RawJson> pushToUser(User sender, MessageCreateModel model) {
         User receiver = UserFactory.findById(model.getReceiverId());
         // 没有找到接受者
         if(receiver == null)
@@ -62,30 +182,45 @@ public class MessageService extends BaseService {
 
         Message message = MessageFactory.add(sender, receiver, model);
 
-        return buildAndPushResponse(sender, message);
+        return buildAndPushResponse(sender, model, message);
     }
 
     // 发送到群
-    private ResponseModel<MessageCard> pushToGroup(User sender, MessageCreateModel model) {
+    private ResponseModel<RawJson> pushToGroup(User sender, MessageCreateModel model) {
         Group group = GroupFactory.findById(sender, model.getReceiverId());
         if(group == null)
             return ResponseModel.buildNotFoundUserError("Can't find receiver group");
 
         Message message = MessageFactory.add(sender, group, model);
 
-        return buildAndPushResponse(sender, message);
+        return buildAndPushResponse(sender, model, message);
     }
 
     // 推送构建并返回信息
-    private ResponseModel<MessageCard> buildAndPushResponse(User sender, Message message) {
-        // 存储数据库失败
-        if(message == null)
+    private ResponseModel<RawJson> buildAndPushResponse(User sender, MessageCreateModel model, Message message) {
+        if(message == null) {
+            // 存储数据库失败时才查询一次，Id已经存在说明是之前提交过的消息
+            Message exist = MessageFactory.findById(model.getId());
+            if(exist != null)
+                return buildExistResponse(sender, exist);
             return ResponseModel.buildCreateError(ResponseModel.ERROR_CREATE_MESSAGE);
+        }
+
+        // 消息卡片只序列化一次，推送与返回共用
+        String entity = TextUtil.toJson(new MessageCard(message));
 
-        // 进行推送
-        PushFactory.pushNewMessage(sender, message);
+        // 提交之后推送交给后台队列处理，请求线程直接返回
+        Hib.afterCommit(() -> PushQueue.submit(() -> PushFactory.pushNewMessage(sender, message, entity)));
 
-        return ResponseModel.buildOk(new MessageCard(message));
+        return ResponseModel.buildOk(RawJson.of(entity));
+    }
+
+    // 返回已经保存过的消息，不再推送
+    private ResponseModel<RawJson> buildExistResponse(User sender, Message message) {
+        // Id由客户端生成，只有自己发送的消息才能返回
+        if(!sender.getId().equals(message.getSenderId()))
+            return ResponseModel.buildCreateError(ResponseModel.ERROR_CREATE_MESSAGE);
+        return ResponseModel.buildOk(RawJson.of(TextUtil.toJson(new MessageCard(message))));
     }
 
 }
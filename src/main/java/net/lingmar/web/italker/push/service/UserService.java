@@ -3,15 +3,21 @@ package net.lingmar.web.italker.push.service;
 import com.google.common.base.Strings;
 import net.lingmar.web.italker.push.bean.api.base.PushModel;
 import net.lingmar.web.italker.push.bean.api.base.ResponseModel;
+import net.lingmar.web.italker.push.bean.api.user.ContactSyncModel;
 import net.lingmar.web.italker.push.bean.api.user.UpdateInfoModel;
 import net.lingmar.web.italker.push.bean.card.UserCard;
 import net.lingmar.web.italker.push.bean.db.User;
 import net.lingmar.web.italker.push.factory.PushFactory;
 import net.lingmar.web.italker.push.factory.UserFactory;
+import net.lingmar.web.italker.push.factory.ValidatorCache;
+import net.lingmar.web.italker.push.provider.LocalDateTimeConverter;
+import net.lingmar.web.italker.push.utils.Hib;
 import net.lingmar.web.italker.push.utils.PushDispatcher;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -20,6 +26,10 @@ import java.util.stream.Collectors;
  */
 @Path("/user")
 public class UserService extends BaseService {
+    // 增量同步的watermark往前留出的秒数
+    private static final long SYNC_LAG = 5;
+    // 批量获取用户信息时一次最多的数量
+    private static final int MAX_BATCH = 1000;
 
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
@@ -30,6 +40,10 @@ public class UserService extends BaseService {
         }
 
         User self = getSelf();
+        // 缓存的用户被同一个Token的所有请求共用，在重新查询的用户上修改
+        self = UserFactory.findById(self.getId());
+        if (self == null)
+            return ResponseModel.buildServiceError();
         // 更新用户信息
         self = model.updateToUser(self);
         self = UserFactory.update(self);
@@ -61,6 +75,48 @@ public class UserService extends BaseService {
         return ResponseModel.buildOk(userCards);
     }
 
+    /**
+     * 增量同步联系人
+     *
+     * @param dateStr 上次同步返回的watermark
+     *                不传递->返回全部的联系人；
+     *                传递->返回这个时间之后新关注的与资料有变化的联系人
+     * @return 有变化的联系人与本次同步的watermark
+     */
+    @GET
+    @Path("/contact/sync/{date:(.*)?}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public ResponseModel<ContactSyncModel> syncContact(
+            @DefaultValue("") @PathParam("date") String dateStr) {
+        User self = getSelf();
+
+        LocalDateTime dateTime = null;
+        if (!Strings.isNullOrEmpty(dateStr)) {
+            try {
+                dateTime = LocalDateTime.parse(dateStr, LocalDateTimeConverter.FORMATTER);
+            } catch (Exception e) {
+                dateTime = null;
+            }
+        }
+
+        // 在查询之前取得时间，并往前留出余量，
+        // 查询时还没有提交的修改会在下次同步时返回，客户端按Id覆盖即可
+        LocalDateTime watermark = LocalDateTime.now().minusSeconds(SYNC_LAG);
+
+        Set<User> users = dateTime == null ? UserFactory.contact(self)
+                : UserFactory.contactSince(self, dateTime);
+        if (users == null)
+            return ResponseModel.buildServiceError();
+
+        List<UserCard> userCards = users.stream()
+                .map(user -> new UserCard(user, true))
+                .collect(Collectors.toList());
+
+        // 目前没有取消关注的操作，removed始终为空
+        return ResponseModel.buildOk(new ContactSyncModel(watermark, userCards));
+    }
+
     // 关注人
     @PUT
     @Path("/follow/{followId}")
@@ -86,8 +142,12 @@ public class UserService extends BaseService {
             return ResponseModel.buildServiceError();
         }
 
-        // 通知我关注的人我关注了他
-        PushFactory.pushFollow(followUser, new UserCard(self));
+        // 关注数量已经变化，重新查询自己的信息，缓存的用户不做修改
+        User origin = UserFactory.findById(self.getId());
+        // 通知我关注的人我关注了他，关注提交之后再推送
+        User receiver = followUser;
+        UserCard selfCard = new UserCard(origin != null ? origin : self);
+        Hib.afterCommit(() -> PushFactory.pushFollow(receiver, selfCard));
 
         // 返回关注人的信息
         return ResponseModel.buildOk(new UserCard(followUser, true));
@@ -104,6 +164,9 @@ public class UserService extends BaseService {
         }
 
         User self = getSelf();
+        // 没有变化时直接返回304
+        checkNotModified(ValidatorCache.userCard(self, id));
+
         if (self.getId().equalsIgnoreCase(id)) {
             // 返回自己，不必查询数据库
             return ResponseModel.buildOk(new UserCard(self, true));
@@ -115,36 +178,69 @@ public class UserService extends BaseService {
         }
 
         // 如果我们之间有关注的记录，则我已关注查询信息的用户
-        boolean isFollow = UserFactory.getUserFollow(self, user) != null;
+        boolean isFollow = UserFactory.isFollowing(self, user);
         return ResponseModel.buildOk(new UserCard(user, isFollow));
     }
 
+    /**
+     * 批量获取用户信息，用于客户端一次解析多个发送者
+     *
+     * @param ids 用户Id，?ids=xx&ids=yy，最多MAX_BATCH个
+     * @return 查询到的用户信息，不存在的Id会被忽略
+     */
+    @GET
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public ResponseModel<List<UserCard>> batch(@QueryParam("ids") List<String> ids) {
+        if (ids == null || ids.isEmpty() || ids.size() > MAX_BATCH)
+            return ResponseModel.buildParameterError();
+
+        User self = getSelf();
+        List<User> users = UserFactory.findByIds(ids);
+        if (users == null)
+            return ResponseModel.buildServiceError();
+
+        // 筛选出我已经关注的人
+        Set<String> follows = UserFactory.filterFollowing(self, users.stream()
+                .map(User::getId)
+                .collect(Collectors.toList()));
+
+        List<UserCard> userCards = users.stream()
+                .map(user -> new UserCard(user, user.getId().equalsIgnoreCase(self.getId())
+                        || follows.contains(user.getId())))
+                .collect(Collectors.toList());
+        return ResponseModel.buildOk(userCards);
+    }
+
     // 搜索人的接口实现
     // 为了简化分页，只返回20条数据
     @GET
     @Path("/search/{name:(.*)?}") // 名字为任意字符，可以为空
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public ResponseModel<Set<UserCard>> contact(@PathParam("name") String name) {
+    public ResponseModel<List<UserCard>> contact(@PathParam("name") String name) {
         User self = getSelf();
 
-        // 先取出数据
-        Set<User> searchUsers = UserFactory.search(name);
+        // 先取出数据，保持搜索结果的排序
+        List<User> searchUsers = UserFactory.search(name);
+        if (searchUsers == null)
+            return ResponseModel.buildServiceError();
 
-        // 取出我的联系人
-        Set<User> contacts = UserFactory.contact(self);
+        // 筛选出搜索结果中我已经关注的人
+        Set<String> follows = UserFactory.filterFollowing(self, searchUsers.stream()
+                .map(User::getId)
+                .collect(Collectors.toList()));
 
-        Set<UserCard> userCards = searchUsers.stream()
+        List<UserCard> userCards = searchUsers.stream()
                 .map(user -> {
                     // 判断这个人是否是自己，或者是我的联系人中的人
                     boolean isFollow = user.getId().equalsIgnoreCase(self.getId())
-                            || contacts.stream().anyMatch(contactsUser -> contactsUser.getId()
-                                    .equalsIgnoreCase(user.getId())
-                    );
+                            || follows.contains(user.getId());
 
                     return new UserCard(user, isFollow);
                 })
-                .collect(Collectors.toSet());
+                .collect(Collectors.toList());
         return ResponseModel.buildOk(userCards);
     }
 
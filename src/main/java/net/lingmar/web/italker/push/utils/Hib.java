@@ -1,29 +1,49 @@
 package net.lingmar.web.italker.push.utils;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by qiujuer
  * on 2017/2/17.
+ * <p>
+ * 默认每次query都会打开一个新的Session与事务；
+ * 当前线程开启了工作单元（UnitOfWorkFilter在请求开始时开启）时，
+ * 一个请求中所有的query共用一个Session、连接与事务，修改在请求结束时一起写入并提交；
+ * 其中一个query失败时，整个工作单元回滚并标记为失败，之后的query都直接返回失败，
+ * 结束时返回提交失败，由UnitOfWorkFilter返回服务器错误，不会在新的事务中继续写入
+ * 推送与缓存的写入通过afterCommit在提交成功之后执行
  */
 public class Hib {
     // 全局SessionFactory
     private static SessionFactory sessionFactory;
 
+    // 当前线程的工作单元
+    private static final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+
     static {
         // 静态初始化sessionFactory
         init();
     }
 
     private static void init() {
-        // 从hibernate.cfg.xml文件初始化
+        // 默认从hibernate.cfg.xml文件初始化
+        // 可以通过-Ditalker.hibernate.config指定其他配置，比如性能测试使用的内嵌数据库
+        final String resource = System.getProperty("italker.hibernate.config", "hibernate.cfg.xml");
         final StandardServiceRegistry registry = new StandardServiceRegistryBuilder()
-                .configure() // configures settings from hibernate.cfg.xml
+                .configure(resource) // configures settings from hibernate.cfg.xml
                 .build();
         try {
             // build 一个sessionFactory
@@ -55,6 +75,42 @@ public class Hib {
         return sessionFactory.getCurrentSession();
     }
 
+    /**
+     * 取得统计信息，需要配置generate_statistics
+     *
+     * @return Statistics
+     */
+    public static Statistics statistics() {
+        return sessionFactory.getStatistics();
+    }
+
+    /**
+     * 取得二级缓存一个区域的命中率
+     *
+     * @param region 区域名称，比如user、group、groupMember
+     * @return 命中率，还没有访问时返回0
+     */
+    public static double cacheHitRatio(String region) {
+        SecondLevelCacheStatistics statistics = statistics().getSecondLevelCacheStatistics(region);
+        if (statistics == null)
+            return 0;
+
+        long hits = statistics.getHitCount();
+        long total = hits + statistics.getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * 从二级缓存中移除一个实体
+     * 通过Session修改的实体会自动更新缓存，只有绕过Session直接修改数据库时才需要调用
+     *
+     * @param entityClass 实体类型
+     * @param id          实体Id
+     */
+    public static void evict(Class<?> entityClass, Serializable id) {
+        sessionFactory.getCache().evictEntity(entityClass, id);
+    }
+
     /**
      * 关闭sessionFactory
      */
@@ -74,7 +130,70 @@ public class Hib {
         void query(Session session);
     }
 
+    /**
+     * 在当前线程开启一个工作单元，之后的query都会加入这个工作单元
+     * Session与事务在第一次query时才打开
+     */
+    public static void beginUnitOfWork() {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            // 上一个请求没有正常结束，回滚残留的工作单元
+            work.close(false);
+        }
+        unitOfWork.set(new UnitOfWork());
+    }
+
+    /**
+     * 结束当前线程的工作单元
+     *
+     * @param commit true提交，false回滚
+     * @return 是否提交成功，工作单元中的query失败过时提交返回false，回滚或者没有工作单元时返回true
+     */
+    public static boolean endUnitOfWork(boolean commit) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null)
+            return true;
+
+        unitOfWork.remove();
+        return work.close(commit);
+    }
+
+    /**
+     * 当前线程是否开启了工作单元
+     *
+     * @return 开启时返回true
+     */
+    public static boolean inUnitOfWork() {
+        return unitOfWork.get() != null;
+    }
+
+    /**
+     * 在当前线程的工作单元提交成功之后执行，用于推送与缓存的写入，
+     * 避免其他线程与之后的请求看到还没有提交、最终可能回滚的数据
+     * 没有工作单元时立即执行；工作单元回滚时不执行
+     *
+     * @param action 提交之后执行的操作
+     */
+    public static void afterCommit(Runnable action) {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null) {
+            action.run();
+            return;
+        }
+        work.afterCommit(action);
+    }
+
     public static void queryOnly(QueryOnly query) {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            // 加入当前的工作单元
+            work.query(session -> {
+                query.query(session);
+                return null;
+            });
+            return;
+        }
+
         // 防止Session重复，重开一个Session
         Session session = sessionFactory.openSession();
 
@@ -95,6 +214,32 @@ public class Hib {
     }
 
     public static<T> T query(Query<T> query) {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            // 加入当前的工作单元
+            return work.query(query);
+        }
+
+        return execute(query);
+    }
+
+    /**
+     * 在新的Session与事务中执行，用于后台线程中独立提交的写入，返回时已经提交
+     * 不能在开启了工作单元的线程中调用：工作单元已经占用了一个连接，再取一个连接时，
+     * 连接池用完后所有请求都在等待第二个连接；请求线程中需要时通过afterCommit在连接归还之后执行
+     *
+     * @param query 查询
+     * @param <T>   返回值类型
+     * @return 查询结果，失败返回null
+     */
+    public static <T> T queryNew(Query<T> query) {
+        if (unitOfWork.get() != null)
+            throw new IllegalStateException("Can't open a new session inside a unit of work.");
+
+        return execute(query);
+    }
+
+    private static <T> T execute(Query<T> query) {
         // 防止Session重复，重开一个Session
         Session session = sessionFactory.openSession();
 
@@ -120,4 +265,179 @@ public class Hib {
         return t;
     }
 
+    /**
+     * 只读的查询，用于只查询不修改的操作
+     * Session与连接都设置为只读，不自动写入，加载的实体不保留快照，提交时也就不需要脏检查
+     * 返回的实体修改后不会写入数据库，需要修改时通过merge方法保存
+     * <p>
+     * 在工作单元中时加入工作单元，这次调用加载的实体同样设置为只读，提交时不做脏检查；
+     * 之前已经在Session中的实体保持原来的状态
+     *
+     * @param query 查询
+     * @param <T>   返回值类型
+     * @return 查询结果，失败返回null
+     */
+    public static <T> T queryReadOnly(Query<T> query) {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            return work.queryReadOnly(query);
+        }
+
+        Session session = sessionFactory.openSession();
+        // 加载的实体不保留快照
+        session.setDefaultReadOnly(true);
+        // 不自动写入
+        session.setHibernateFlushMode(FlushMode.MANUAL);
+
+        T t = null;
+        Transaction transaction = null;
+        try {
+            // 只读需要在事务开始前设置，连接池在连接归还时会恢复默认值
+            session.doWork(connection -> connection.setReadOnly(true));
+            transaction = session.beginTransaction();
+            t = query.query(session);
+            transaction.commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            // 重置t
+            t = null;
+            // 回滚
+            if (transaction != null && transaction.isActive())
+                transaction.rollback();
+        } finally {
+            session.close();
+        }
+
+        return t;
+    }
+
+    /**
+     * 在Session中写入一个修改过的实体
+     * 只读查询得到的实体修改后不会写入数据库，先移出Session中同一Id的实体，
+     * 再通过merge按传入实体的状态写入
+     *
+     * @param session 当前的Session
+     * @param entity  修改过的实体
+     * @param id      实体的Id，新的实体传递null
+     * @param <T>     实体类型
+     * @return Session中可以修改的实体
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T merge(Session session, T entity, Serializable id) {
+        if (id != null) {
+            // load不查询数据库，Session中已经有这个实体时返回这个实体，否则返回代理
+            session.evict(session.load(Hibernate.getClass(entity), id));
+            session.evict(entity);
+        }
+        return (T) session.merge(entity);
+    }
+
+    /**
+     * 一个请求内共用的Session与事务
+     */
+    private static class UnitOfWork {
+        private Session session;
+        private Transaction transaction;
+        // 其中一个query失败后已经回滚，之后的query都不再执行
+        private boolean failed;
+        // 提交成功之后执行的操作
+        private final List<Runnable> afterCommit = new ArrayList<>();
+
+        void afterCommit(Runnable action) {
+            if (!failed)
+                afterCommit.add(action);
+        }
+
+        private Session session() {
+            if (session == null) {
+                session = sessionFactory.openSession();
+                transaction = session.beginTransaction();
+            }
+            return session;
+        }
+
+        <T> T queryReadOnly(Query<T> query) {
+            if (failed)
+                return null;
+
+            // 只在这次调用中把加载的实体设置为只读，不保留快照
+            Session session = session();
+            session.setDefaultReadOnly(true);
+            try {
+                return query(query);
+            } finally {
+                // 失败时Session已经关闭
+                if (this.session == session)
+                    session.setDefaultReadOnly(false);
+            }
+        }
+
+        <T> T query(Query<T> query) {
+            if (failed)
+                return null;
+
+            Session session = session();
+            try {
+                // 不在每次调用后写入，只在提交时写入一次，避免每次都对整个Session做脏检查；
+                // 约束等错误在提交时返回，提交失败时整个请求返回服务器错误
+                // HQL查询前Hibernate会自动写入涉及的表，请求内仍然可以读到自己的修改
+                return query.query(session);
+            } catch (Exception e) {
+                e.printStackTrace();
+                // 回滚当前的工作单元，之前的写入已经无效，之后的query也不能继续
+                close(false);
+                failed = true;
+                return null;
+            }
+        }
+
+        boolean close(boolean commit) {
+            // 已经回滚，不能再提交
+            if (failed)
+                return !commit;
+
+            List<Runnable> actions = new ArrayList<>(afterCommit);
+            afterCommit.clear();
+            if (session == null) {
+                if (commit)
+                    runAll(actions);
+                return true;
+            }
+
+            try {
+                if (commit) {
+                    transaction.commit();
+                } else {
+                    transaction.rollback();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                try {
+                    if (transaction.isActive())
+                        transaction.rollback();
+                } catch (Exception ignored) {
+                }
+                return false;
+            } finally {
+                session.close();
+                session = null;
+                transaction = null;
+            }
+
+            if (commit)
+                runAll(actions);
+            return true;
+        }
+
+        private void runAll(List<Runnable> actions) {
+            for (Runnable action : actions) {
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    // 数据已经提交，一个操作失败不影响其他操作
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,271 @@
+package net.lingmar.web.italker.push.utils;
+
+import com.google.common.collect.Ordering;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 名字的N-gram倒排索引，用于代替like '%name%'的全表扫描
+ * 每个名字按1到3个字符切分，每个片段记录包含它的Id；
+ * 不超过3个字符的查询直接取片段对应的Id，更长的查询取各个三字片段的交集后再校验是否包含
+ * <p>
+ * 查询不区分大小写，结果按完全匹配、前缀匹配、匹配位置、名字长度排序
+ * 启动时分页并行加载，加载完成前search返回null，由调用者查询数据库
+ * 每页的数量：-Ditalker.search.indexPageSize，默认5000
+ * 并行加载的线程数：-Ditalker.search.indexThreads，默认4
+ */
+public class NGramIndex {
+    private static final Logger logger = Logger.getLogger(NGramIndex.class.getName());
+    // 切分的最大长度
+    private static final int GRAM = 3;
+    private static final int PAGE_SIZE = Integer.getInteger("italker.search.indexPageSize", 5000);
+    private static final int THREADS = Integer.getInteger("italker.search.indexThreads", 4);
+
+    private final String name;
+    // Id到小写名字
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+    // 片段到包含它的Id
+    private final Map<String, Set<String>> grams = new ConcurrentHashMap<>();
+    // 加载过程中移除的Id，加载的旧数据不能再把它们加回来，为null时没有在加载
+    private Set<String> removed;
+    private volatile boolean ready = false;
+
+    public NGramIndex(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 分页加载数据的接口
+     */
+    public interface PageLoader {
+        /**
+         * 加载一页数据
+         *
+         * @param offset 起始位置
+         * @param limit  数量
+         * @return 每行为[id, name]，失败返回null
+         */
+        List<Object[]> load(int offset, int limit);
+    }
+
+    /**
+     * 并行加载全部的数据，加载完成后开始提供查询
+     * 加载过程中put与remove的数据以最新的为准
+     *
+     * @param total  总数量
+     * @param loader 加载一页数据
+     */
+    public void build(long total, PageLoader loader) {
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            removed = new HashSet<>();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "NGramIndex-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<List<Object[]>>> pages = new ArrayList<>();
+            for (long offset = 0; offset < total; offset += PAGE_SIZE) {
+                final int from = (int) offset;
+                pages.add(executor.submit(() -> loader.load(from, PAGE_SIZE)));
+            }
+
+            for (Future<List<Object[]>> page : pages) {
+                List<Object[]> rows = page.get();
+                if (rows == null) {
+                    logger.warning("Build search index " + name + " failed, fallback to database.");
+                    return;
+                }
+                for (Object[] row : rows) {
+                    putIfAbsent((String) row[0], (String) row[1]);
+                }
+            }
+
+            ready = true;
+            logger.info("Build search index " + name + ": " + names.size() + " names, "
+                    + grams.size() + " grams in " + (System.currentTimeMillis() - start) + "ms.");
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Build search index " + name + " failed, fallback to database.", e);
+        } finally {
+            executor.shutdownNow();
+            synchronized (this) {
+                removed = null;
+            }
+        }
+    }
+
+    /**
+     * 是否已经加载完成
+     *
+     * @return true可以查询
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 添加或者修改一个名字
+     *
+     * @param id   Id
+     * @param name 名字，为空时移除
+     */
+    public synchronized void put(String id, String name) {
+        if (name == null) {
+            remove(id);
+            return;
+        }
+
+        String value = name.toLowerCase(Locale.ROOT);
+        if (removed != null)
+            removed.remove(id);
+        String old = names.put(id, value);
+        if (value.equals(old))
+            return;
+        if (old != null)
+            unindex(id, old);
+        index(id, value);
+    }
+
+    // 加载的数据可能比加载过程中修改的数据旧，已经存在或者已经被移除时不再覆盖
+    private synchronized void putIfAbsent(String id, String name) {
+        if (name == null || names.containsKey(id) || (removed != null && removed.contains(id)))
+            return;
+        put(id, name);
+    }
+
+    /**
+     * 移除一个名字
+     *
+     * @param id Id
+     */
+    public synchronized void remove(String id) {
+        if (removed != null)
+            removed.add(id);
+        String old = names.remove(id);
+        if (old != null)
+            unindex(id, old);
+    }
+
+    /**
+     * 查询包含关键字的名字
+     *
+     * @param query 关键字，不能为空
+     * @param limit 最多返回的数量
+     * @return 按匹配程度排序的Id，还没有加载完成时返回null
+     */
+    public List<String> search(String query, int limit) {
+        if (!ready)
+            return null;
+
+        final String value = query.toLowerCase(Locale.ROOT);
+        Set<String> candidates;
+        boolean verify = false;
+        if (value.length() <= GRAM) {
+            // 片段本身就是完整的关键字
+            candidates = grams.get(value);
+        } else {
+            // 从最少的片段开始，取各个三字片段的交集
+            candidates = null;
+            for (int i = 0; i + GRAM <= value.length(); i++) {
+                Set<String> ids = grams.get(value.substring(i, i + GRAM));
+                if (ids == null)
+                    return Collections.emptyList();
+                if (candidates == null || ids.size() < candidates.size())
+                    candidates = ids;
+            }
+            verify = true;
+        }
+        if (candidates == null || candidates.isEmpty())
+            return Collections.emptyList();
+
+        final boolean contains = verify;
+        List<Match> matches = new ArrayList<>();
+        for (String id : candidates) {
+            String name = names.get(id);
+            if (name == null)
+                continue;
+            int position = name.indexOf(value);
+            // 交集只是候选，需要校验是否真的包含
+            if (contains && position < 0)
+                continue;
+            matches.add(new Match(id, name, position));
+        }
+
+        List<String> result = new ArrayList<>();
+        for (Match match : Ordering.from(Match.ORDER).leastOf(matches, limit)) {
+            result.add(match.id);
+        }
+        return result;
+    }
+
+    /**
+     * 已经索引的名字数量
+     *
+     * @return 数量
+     */
+    public int size() {
+        return names.size();
+    }
+
+    private void index(String id, String name) {
+        for (String gram : grams(name)) {
+            grams.computeIfAbsent(gram, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    private void unindex(String id, String name) {
+        for (String gram : grams(name)) {
+            grams.computeIfPresent(gram, (key, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    // 切分出名字中所有1到3个字符的片段
+    private static Set<String> grams(String name) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < name.length(); i++) {
+            for (int n = 1; n <= GRAM && i + n <= name.length(); n++) {
+                result.add(name.substring(i, i + n));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 一个匹配的结果，用于排序
+     */
+    private static class Match {
+        // 完全匹配、前缀匹配、匹配位置靠前、名字短的排在前面
+        static final Comparator<Match> ORDER = Comparator
+                .comparingInt((Match m) -> m.position)
+                .thenComparingInt(m -> m.name.length())
+                .thenComparing(m -> m.name);
+
+        final String id;
+        final String name;
+        final int position;
+
+        Match(String id, String name, int position) {
+            this.id = id;
+            this.name = name;
+            this.position = position;
+        }
+    }
+}
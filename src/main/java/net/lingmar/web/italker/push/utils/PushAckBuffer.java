@@ -0,0 +1,219 @@
+package net.lingmar.web.italker.push.utils;
+
+import net.lingmar.web.italker.push.bean.db.User;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 推送送达确认的延迟批量写入
+ * 客户端确认的推送记录先进入队列，由后台线程按接收者分组，
+ * 通过update ... where id in (...)一次更新一批记录的arrivalAt，同时更新用户的lastReceivedAt
+ * <p>
+ * 单次写入的最大数量：-Ditalker.ack.batchSize，默认500
+ * 最长等待时间：-Ditalker.ack.flushInterval，单位毫秒，默认1000
+ * 队列最大长度：-Ditalker.ack.queueCapacity，默认50000，队列满时由调用线程直接写入，
+ * 调用线程在工作单元中时等到提交之后再写入，不同时占用两个连接
+ * <p>
+ * 这里只写入送达时间，写入后的记录可以被清理，清理不在这里进行
+ */
+public class PushAckBuffer {
+    private static final Logger LOGGER = Logger.getLogger("PushAckBuffer");
+
+    private static final int BATCH_SIZE = Integer.getInteger("italker.ack.batchSize", 500);
+    private static final long FLUSH_INTERVAL = Long.getLong("italker.ack.flushInterval", 1000);
+    private static final int CAPACITY = Integer.getInteger("italker.ack.queueCapacity", 50000);
+
+    // 只更新还没有送达的记录，同时限定接收者，不能确认别人的记录
+    private static final String ACK_SQL = "update TB_PUSH_HISTORY set arrivalAt=?, updateAt=? " +
+            "where receiverId=? and arrivalAt is null and id in (%s)";
+    private static final String USER_SQL = "update TB_USER set lastReceivedAt=? where id=?";
+
+    private static final BlockingQueue<Ack> queue = new LinkedBlockingQueue<>(CAPACITY);
+
+    // 成功更新的记录数
+    private static final AtomicLong acked = new AtomicLong();
+    // 写入失败的确认数
+    private static final AtomicLong failed = new AtomicLong();
+    // 批量写入的次数
+    private static final AtomicLong flushes = new AtomicLong();
+
+    private static volatile boolean running = true;
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(PushAckBuffer::loop, "push-ack-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 确认一个用户收到了一组推送记录
+     *
+     * @param receiverId 接收者Id
+     * @param historyIds 推送记录Id
+     */
+    public static void ack(String receiverId, Collection<String> historyIds) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Ack> overflow = new ArrayList<>();
+        for (String historyId : historyIds) {
+            Ack ack = new Ack(receiverId, historyId, now);
+            if (!running || !queue.offer(ack))
+                overflow.add(ack);
+        }
+        // 队列已满或者已经关闭，没有进入队列的确认由调用者一次写入
+        if (overflow.size() > 0)
+            Hib.afterCommit(() -> write(overflow));
+    }
+
+    private static void loop() {
+        List<Ack> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                Ack first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+
+                    // 等待凑满一批，或者等待超时
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL);
+                    while (batch.size() < BATCH_SIZE) {
+                        queue.drainTo(batch, BATCH_SIZE - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= BATCH_SIZE || remaining <= 0 || !running)
+                            break;
+                        Ack next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                // 关闭时被打断，先写入已经取出的确认，再继续把剩余的确认写完
+                write(batch);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "推送确认写入失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void write(List<Ack> acks) {
+        if (acks.size() == 0)
+            return;
+
+        // 按接收者分组，每个接收者一条update
+        Map<String, List<Ack>> groups = new HashMap<>();
+        for (Ack ack : acks) {
+            groups.computeIfAbsent(ack.receiverId, key -> new ArrayList<>()).add(ack);
+        }
+
+        // 使用独立的事务，请求线程中在工作单元提交之后才执行，返回时已经提交
+        Integer count = Hib.queryNew(session -> {
+            int[] updated = {0};
+            session.doWork(connection -> {
+                for (Map.Entry<String, List<Ack>> group : groups.entrySet()) {
+                    List<Ack> items = group.getValue();
+                    Timestamp time = Timestamp.valueOf(items.get(items.size() - 1).time);
+                    String sql = String.format(ACK_SQL, String.join(",", Collections.nCopies(items.size(), "?")));
+                    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                        statement.setTimestamp(1, time);
+                        statement.setTimestamp(2, time);
+                        statement.setString(3, group.getKey());
+                        for (int i = 0; i < items.size(); i++) {
+                            statement.setString(4 + i, items.get(i).historyId);
+                        }
+                        updated[0] += statement.executeUpdate();
+                    }
+                }
+
+                try (PreparedStatement statement = connection.prepareStatement(USER_SQL)) {
+                    for (Map.Entry<String, List<Ack>> group : groups.entrySet()) {
+                        List<Ack> items = group.getValue();
+                        statement.setTimestamp(1, Timestamp.valueOf(items.get(items.size() - 1).time));
+                        statement.setString(2, group.getKey());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            });
+            return updated[0];
+        });
+
+        flushes.incrementAndGet();
+        if (count != null) {
+            acked.addAndGet(count);
+            // 直接修改了数据库，二级缓存中的用户不再有效
+            for (String receiverId : groups.keySet()) {
+                Hib.evict(User.class, receiverId);
+            }
+        } else {
+            failed.addAndGet(acks.size());
+            LOGGER.log(Level.WARNING, "推送确认写入失败，丢弃：" + acks.size());
+        }
+    }
+
+    /**
+     * 停止后台写入，并把队列中剩余的确认全部写入数据库
+     *
+     * @param timeoutMillis 最大等待时间
+     */
+    public static void shutdown(long timeoutMillis) {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive())
+            LOGGER.log(Level.WARNING, "推送确认写入关闭超时，剩余：" + queue.size());
+    }
+
+    // 当前等待写入的确认数量
+    public static int getQueueDepth() {
+        return queue.size();
+    }
+
+    public static long getAckedCount() {
+        return acked.get();
+    }
+
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    public static long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * 一条送达确认
+     */
+    private static class Ack {
+        final String receiverId;
+        final String historyId;
+        final LocalDateTime time;
+
+        Ack(String receiverId, String historyId, LocalDateTime time) {
+            this.receiverId = receiverId;
+            this.historyId = historyId;
+            this.time = time;
+        }
+    }
+}
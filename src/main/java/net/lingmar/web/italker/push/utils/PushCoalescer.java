@@ -0,0 +1,239 @@
+package net.lingmar.web.italker.push.utils;
+
+import com.google.common.base.Strings;
+import net.lingmar.web.italker.push.bean.api.base.PushModel;
+import net.lingmar.web.italker.push.bean.db.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 合并推送的发送者
+ * 在一个时间窗口内，把发给同一个设备的多个实体合并为一个PushModel，
+ * 所有设备的PushModel再通过一次批量提交发送，减少对推送服务器的请求次数
+ * <p>
+ * 免打扰的推送（群设置为接受消息不提示）走单独的通道，
+ * 使用更长的时间窗口，并且离线保存的时间更短
+ * <p>
+ * 时间窗口：-Ditalker.push.coalesceWindow，单位毫秒，默认100
+ * 免打扰推送的时间窗口：-Ditalker.push.quietWindow，单位毫秒，默认1000
+ * 单个设备最多缓存的实体数量，超过后立即发送：-Ditalker.push.coalesceMaxEntities，默认20
+ * 一次批量提交最多包含的设备数量：-Ditalker.push.batchSize，默认500
+ */
+public class PushCoalescer {
+    private static final Logger LOGGER = Logger.getLogger("PushCoalescer");
+
+    private static final long WINDOW = Long.getLong("italker.push.coalesceWindow", 100);
+    private static final long QUIET_WINDOW = Long.getLong("italker.push.quietWindow", 1000);
+    private static final int MAX_ENTITIES = Integer.getInteger("italker.push.coalesceMaxEntities", 20);
+    private static final int BATCH_SIZE = Integer.getInteger("italker.push.batchSize", 500);
+
+    // 普通推送
+    private static final Lane normal = new Lane(false);
+    // 免打扰推送
+    private static final Lane quiet = new Lane(true);
+
+    // 收到的实体数量
+    private static final AtomicLong entities = new AtomicLong();
+    // 实际发送给设备的推送数量
+    private static final AtomicLong devicePushes = new AtomicLong();
+    // 其中免打扰的推送数量
+    private static final AtomicLong quietPushes = new AtomicLong();
+    // 对推送服务器的批量提交次数
+    private static final AtomicLong batches = new AtomicLong();
+
+    private static final ScheduledExecutorService scheduler;
+
+    static {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "push-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> flushSafely(normal),
+                WINDOW, WINDOW, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(() -> flushSafely(quiet),
+                QUIET_WINDOW, QUIET_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 添加一条推送，将在时间窗口结束时发送
+     *
+     * @param receiver 接受者
+     * @param model    接收的推送Model
+     * @return 是否添加成功
+     */
+    public static boolean add(User receiver, PushModel model) {
+        if (receiver == null)
+            return false;
+
+        return add(receiver.getPushId(), model);
+    }
+
+    /**
+     * 添加一条推送，将在时间窗口结束时发送
+     *
+     * @param pushId 接受者的设备Id
+     * @param model  接收的推送Model
+     * @return 是否添加成功
+     */
+    public static boolean add(String pushId, PushModel model) {
+        return normal.add(pushId, model);
+    }
+
+    /**
+     * 添加一条免打扰的推送，将在免打扰的时间窗口结束时发送
+     *
+     * @param pushId 接受者的设备Id
+     * @param model  接收的推送Model
+     * @return 是否添加成功
+     */
+    public static boolean addQuiet(String pushId, PushModel model) {
+        return quiet.add(pushId, model);
+    }
+
+    private static void flushSafely(Lane lane) {
+        try {
+            lane.flush();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "合并推送发送失败", e);
+        }
+    }
+
+    /**
+     * 把当前缓存的所有实体按设备合并后发送
+     */
+    public static void flush() {
+        normal.flush();
+        quiet.flush();
+    }
+
+    private static void submit(PushDispatcher dispatcher) {
+        batches.incrementAndGet();
+        dispatcher.submit();
+    }
+
+    /**
+     * 停止定时发送，并把剩余的实体全部发送
+     */
+    public static void shutdown() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(QUIET_WINDOW * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushSafely(normal);
+        flushSafely(quiet);
+    }
+
+    // 当前等待发送的设备数量
+    public static int getPendingDevices() {
+        return normal.buckets.size() + quiet.buckets.size();
+    }
+
+    public static long getEntityCount() {
+        return entities.get();
+    }
+
+    public static long getDevicePushCount() {
+        return devicePushes.get();
+    }
+
+    public static long getQuietPushCount() {
+        return quietPushes.get();
+    }
+
+    public static long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * 一个独立合并发送的通道
+     */
+    private static class Lane {
+        // 以设备的PushId为Key，缓存等待发送的实体
+        private final Map<String, List<PushModel.Entity>> buckets = new ConcurrentHashMap<>();
+        private final boolean quiet;
+
+        Lane(boolean quiet) {
+            this.quiet = quiet;
+        }
+
+        boolean add(String pushId, PushModel model) {
+            if (Strings.isNullOrEmpty(pushId)
+                    || model == null
+                    || model.getEntities().size() == 0)
+                return false;
+
+            final boolean[] full = {false};
+            buckets.compute(pushId, (key, list) -> {
+                if (list == null)
+                    list = new ArrayList<>();
+                list.addAll(model.getEntities());
+                full[0] = list.size() >= MAX_ENTITIES;
+                return list;
+            });
+            entities.addAndGet(model.getEntities().size());
+
+            // 单个设备缓存的实体过多，不再等待时间窗口；
+            // 已经关闭时没有定时发送，添加的实体也立即发送
+            if (full[0] || scheduler.isShutdown())
+                flushSoon();
+            return true;
+        }
+
+        private void flushSoon() {
+            try {
+                scheduler.execute(() -> flushSafely(this));
+            } catch (RejectedExecutionException e) {
+                // 已经关闭，由调用线程直接发送
+                flushSafely(this);
+            }
+        }
+
+        synchronized void flush() {
+            if (buckets.isEmpty())
+                return;
+
+            PushDispatcher dispatcher = new PushDispatcher();
+            int count = 0;
+            for (String pushId : buckets.keySet()) {
+                // 取出后其他线程再添加的实体会进入新的列表
+                List<PushModel.Entity> list = buckets.remove(pushId);
+                if (list == null)
+                    continue;
+
+                PushModel model = new PushModel();
+                for (PushModel.Entity entity : list) {
+                    model.add(entity);
+                }
+                if (dispatcher.add(pushId, model, quiet)) {
+                    devicePushes.incrementAndGet();
+                    if (quiet)
+                        quietPushes.incrementAndGet();
+                    count++;
+                }
+
+                // 单次提交的设备数量达到上限，先提交一批
+                if (count >= BATCH_SIZE) {
+                    submit(dispatcher);
+                    dispatcher = new PushDispatcher();
+                    count = 0;
+                }
+            }
+
+            if (count > 0)
+                submit(dispatcher);
+        }
+    }
+}
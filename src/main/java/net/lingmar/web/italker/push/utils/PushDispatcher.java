@@ -13,6 +13,7 @@ import net.lingmar.web.italker.push.bean.db.User;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,17 +21,35 @@ import java.util.logging.Logger;
  * 消息推送工具类
  */
 public class PushDispatcher {
-    private static final String appId = "AW8R153xcV6ryptXf5qj07";
-    private static final String appKey = "zSqVBBCqP2AOIEFfZoZ5KA";
-    private static final String masterSecret = "ZIGY0ESKfx6n1zTfC8tM23";
-    private static final String host = "http://sdk.open.api.igexin.com/apiex.htm";
+    // 推送服务的配置，可以通过系统属性修改，比如压测时指向本地模拟的推送服务
+    private static final String appId = System.getProperty("italker.push.appId", "AW8R153xcV6ryptXf5qj07");
+    private static final String appKey = System.getProperty("italker.push.appKey", "zSqVBBCqP2AOIEFfZoZ5KA");
+    private static final String masterSecret = System.getProperty("italker.push.masterSecret", "ZIGY0ESKfx6n1zTfC8tM23");
+    private static final String host = System.getProperty("italker.push.host", "http://sdk.open.api.igexin.com/apiex.htm");
+
+    // 离线消息时长，毫秒
+    private static final long OFFLINE_EXPIRE = 24 * 3600 * 1000;
+    // 免打扰推送的离线消息时长，离线的设备可以通过拉取同步，默认1小时
+    private static final long QUIET_OFFLINE_EXPIRE = Long.getLong("italker.push.quietOfflineExpire", 3600) * 1000;
+
+    // 推送客户端的创建方式，性能测试时替换为模拟的推送服务
+    private static volatile Supplier<IGtPush> pusherFactory = () -> new IGtPush(host, appKey, masterSecret);
 
     private final IGtPush pusher;
     // 要收到消息的人和内容的列表
     private final List<BatchBean> beans = new ArrayList<>();
 
     public PushDispatcher() {
-        pusher = new IGtPush(host, appKey, masterSecret);
+        pusher = pusherFactory.get();
+    }
+
+    /**
+     * 替换推送客户端的创建方式
+     *
+     * @param factory 推送客户端的创建方式
+     */
+    public static void setPusherFactory(Supplier<IGtPush> factory) {
+        pusherFactory = factory;
     }
 
     /**
@@ -41,7 +60,33 @@ public class PushDispatcher {
      * @return 是否添加成功
      */
     public boolean add(User receiver, PushModel model) {
-        if (receiver == null || Strings.isNullOrEmpty(receiver.getPushId()))
+        if (receiver == null)
+            return false;
+
+        return add(receiver.getPushId(), model);
+    }
+
+    /**
+     * 添加一条消息
+     *
+     * @param pushId 接受者的设备Id
+     * @param model  接收的推送Model
+     * @return 是否添加成功
+     */
+    public boolean add(String pushId, PushModel model) {
+        return add(pushId, model, false);
+    }
+
+    /**
+     * 添加一条消息
+     *
+     * @param pushId 接受者的设备Id
+     * @param model  接收的推送Model
+     * @param quiet  是否是免打扰的推送，免打扰的推送离线保存的时间更短
+     * @return 是否添加成功
+     */
+    public boolean add(String pushId, PushModel model, boolean quiet) {
+        if (Strings.isNullOrEmpty(pushId))
             return false;
 
         String pushString = model.getPushString();
@@ -49,7 +94,8 @@ public class PushDispatcher {
             return false;
 
         // 构建一个目标+内容
-        BatchBean bean = buildMessage(receiver.getPushId(), pushString);
+        BatchBean bean = buildMessage(pushId, pushString,
+                quiet ? QUIET_OFFLINE_EXPIRE : OFFLINE_EXPIRE);
         beans.add(bean);
         return true;
     }
@@ -57,11 +103,12 @@ public class PushDispatcher {
     /**
      * 对要发送的数据进行格式化封装
      *
-     * @param clientId 接受者的设备Id
-     * @param text     要接收的数据
+     * @param clientId      接受者的设备Id
+     * @param text          要接收的数据
+     * @param offlineExpire 离线消息时长
      * @return BatchBean
      */
-    private BatchBean buildMessage(String clientId, String text) {
+    private BatchBean buildMessage(String clientId, String text, long offlineExpire) {
         TransmissionTemplate template = new TransmissionTemplate();
         template.setAppId(appId);
         template.setAppkey(appKey);
@@ -71,7 +118,7 @@ public class PushDispatcher {
         SingleMessage message = new SingleMessage();
         message.setData(template);
         message.setOffline(true); // 允许离线发送
-        message.setOfflineExpireTime(24 * 3600 * 1000); // 离线消息时长
+        message.setOfflineExpireTime(offlineExpire); // 离线消息时长
 
         // 设置推送目标，填入appid和clientId
         Target target = new Target();
@@ -0,0 +1,239 @@
+package net.lingmar.web.italker.push.utils;
+
+import net.lingmar.web.italker.push.bean.db.PushHistory;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 推送记录的延迟批量存储
+ * 所有请求线程产生的推送记录先进入队列，
+ * 由后台线程在数量达到上限或者等待超时后，通过一次JDBC批量插入写入数据库
+ * 整批写入失败时重试一次，仍然失败时逐条写入，只丢弃写入失败的那一条
+ * <p>
+ * 单次写入的最大数量：-Ditalker.history.batchSize，默认200
+ * 最长等待时间：-Ditalker.history.flushInterval，单位毫秒，默认500
+ * 队列最大长度：-Ditalker.history.queueCapacity，默认50000，队列满时由调用线程直接写入，
+ * 调用线程在工作单元中时等到提交之后再写入，不同时占用两个连接
+ */
+public class PushHistoryPersister {
+    private static final Logger LOGGER = Logger.getLogger("PushHistoryPersister");
+
+    private static final int BATCH_SIZE = Integer.getInteger("italker.history.batchSize", 200);
+    private static final long FLUSH_INTERVAL = Long.getLong("italker.history.flushInterval", 500);
+    private static final int CAPACITY = Integer.getInteger("italker.history.queueCapacity", 50000);
+
+    private static final String INSERT_SQL = "insert into TB_PUSH_HISTORY " +
+            "(id, entity, entityType, receiverId, senderId, receiverPushId, createAt, updateAt, arrivalAt) " +
+            "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final BlockingQueue<PushHistory> queue = new LinkedBlockingQueue<>(CAPACITY);
+
+    // 成功写入的记录数
+    private static final AtomicLong written = new AtomicLong();
+    // 写入失败的记录数
+    private static final AtomicLong failed = new AtomicLong();
+    // 批量写入的次数
+    private static final AtomicLong flushes = new AtomicLong();
+    // 批量写入的总耗时
+    private static final AtomicLong flushNanos = new AtomicLong();
+    // 最近一次批量写入的耗时
+    private static volatile long lastFlushNanos;
+
+    private static volatile boolean running = true;
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(PushHistoryPersister::loop, "push-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 保存一条推送记录
+     *
+     * @param history PushHistory
+     */
+    public static void save(PushHistory history) {
+        saveAll(Collections.singletonList(history));
+    }
+
+    /**
+     * 保存多条推送记录
+     *
+     * @param histories PushHistory集合
+     */
+    public static void saveAll(Collection<PushHistory> histories) {
+        List<PushHistory> overflow = new ArrayList<>();
+        for (PushHistory history : histories) {
+            prepare(history);
+            if (!running || !queue.offer(history))
+                overflow.add(history);
+        }
+        // 队列已满或者已经关闭，没有进入队列的记录由调用者一次写入
+        if (overflow.size() > 0)
+            Hib.afterCommit(() -> write(overflow));
+    }
+
+    // 在进入队列时就确定Id，保证调用者拿到的记录和数据库中一致
+    private static void prepare(PushHistory history) {
+        if (history.getId() == null)
+            history.setId(TimeOrderedIdGenerator.next());
+        if (history.getReceiverId() == null && history.getReceiver() != null)
+            history.setReceiverId(history.getReceiver().getId());
+        if (history.getSenderId() == null && history.getSender() != null)
+            history.setSenderId(history.getSender().getId());
+    }
+
+    private static void loop() {
+        List<PushHistory> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                PushHistory first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+
+                // 等待凑满一批，或者等待超时
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || remaining <= 0 || !running)
+                        break;
+                    PushHistory next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                write(batch);
+            } catch (InterruptedException e) {
+                // 关闭时被打断，先写入已经取出的记录，再继续把剩余的记录写完
+                write(batch);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "推送记录写入失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static void write(List<PushHistory> histories) {
+        if (histories.size() == 0)
+            return;
+
+        long start = System.nanoTime();
+        int lost = 0;
+        if (!insert(histories) && !insert(histories)) {
+            // 推送记录是离线同步唯一的来源，逐条写入，不因为一条记录丢弃整批
+            if (histories.size() == 1) {
+                lost = 1;
+            } else {
+                for (PushHistory history : histories) {
+                    if (!insert(Collections.singletonList(history)))
+                        lost++;
+                }
+            }
+        }
+        long cost = System.nanoTime() - start;
+
+        lastFlushNanos = cost;
+        flushNanos.addAndGet(cost);
+        flushes.incrementAndGet();
+        written.addAndGet(histories.size() - lost);
+        if (lost > 0) {
+            failed.addAndGet(lost);
+            LOGGER.log(Level.WARNING, "推送记录写入失败，丢弃：" + lost);
+        }
+    }
+
+    // 在单独的事务中插入一批记录，不加入调用线程的工作单元，返回是否成功
+    private static boolean insert(List<PushHistory> histories) {
+        Boolean succeed = Hib.queryNew(session -> {
+            session.doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+                    for (PushHistory history : histories) {
+                        statement.setString(1, history.getId());
+                        statement.setString(2, history.getEntity());
+                        statement.setInt(3, history.getEntityType());
+                        statement.setString(4, history.getReceiverId());
+                        statement.setString(5, history.getSenderId());
+                        statement.setString(6, history.getReceiverPushId());
+                        statement.setTimestamp(7, toTimestamp(history.getCreateAt()));
+                        statement.setTimestamp(8, toTimestamp(history.getUpdateAt()));
+                        if (history.getArrivalAt() == null)
+                            statement.setNull(9, Types.TIMESTAMP);
+                        else
+                            statement.setTimestamp(9, toTimestamp(history.getArrivalAt()));
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            });
+            return true;
+        });
+        return succeed != null && succeed;
+    }
+
+    private static Timestamp toTimestamp(LocalDateTime time) {
+        return Timestamp.valueOf(time != null ? time : LocalDateTime.now());
+    }
+
+    /**
+     * 停止后台写入，并把队列中剩余的记录全部写入数据库
+     *
+     * @param timeoutMillis 最大等待时间
+     */
+    public static void shutdown(long timeoutMillis) {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive())
+            LOGGER.log(Level.WARNING, "推送记录写入关闭超时，剩余：" + queue.size());
+    }
+
+    // 当前等待写入的记录数量
+    public static int getQueueDepth() {
+        return queue.size();
+    }
+
+    public static long getWrittenCount() {
+        return written.get();
+    }
+
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    public static long getFlushCount() {
+        return flushes.get();
+    }
+
+    // 最近一次批量写入的耗时，毫秒
+    public static double getLastFlushMillis() {
+        return lastFlushNanos / 1000000.0;
+    }
+
+    // 平均每次批量写入的耗时，毫秒
+    public static double getAverageFlushMillis() {
+        long count = flushes.get();
+        return count == 0 ? 0 : flushNanos.get() / 1000000.0 / count;
+    }
+}
@@ -0,0 +1,122 @@
+package net.lingmar.web.italker.push.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 推送任务队列
+ * 请求线程只负责把推送任务放入队列后立即返回，
+ * 由后台的工作线程构建推送记录并调用推送服务器，
+ * 避免推送服务器的响应时间直接拖慢接口的响应时间
+ * <p>
+ * 队列有最大长度，当队列满时由提交任务的线程自己执行，形成背压
+ * 工作线程数量：-Ditalker.push.workers，默认4
+ * 队列最大长度：-Ditalker.push.queueCapacity，默认10000
+ */
+public class PushQueue {
+    private static final Logger LOGGER = Logger.getLogger("PushQueue");
+
+    private static final int WORKERS = Integer.getInteger("italker.push.workers", 4);
+    private static final int CAPACITY = Integer.getInteger("italker.push.queueCapacity", 10000);
+
+    // 已提交的任务数量
+    private static final AtomicLong submitted = new AtomicLong();
+    // 已完成的任务数量
+    private static final AtomicLong completed = new AtomicLong();
+    // 执行失败的任务数量
+    private static final AtomicLong failed = new AtomicLong();
+    // 因为队列已满而由提交线程执行的任务数量
+    private static final AtomicLong callerRuns = new AtomicLong();
+
+    private static final ThreadPoolExecutor executor;
+
+    static {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "push-worker-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        executor = new ThreadPoolExecutor(WORKERS, WORKERS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(CAPACITY),
+                factory,
+                (r, e) -> {
+                    // 队列已满或者已经关闭，由提交者自己执行
+                    callerRuns.incrementAndGet();
+                    r.run();
+                });
+    }
+
+    /**
+     * 提交一个推送任务
+     *
+     * @param task 推送任务
+     */
+    public static void submit(Runnable task) {
+        submitted.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.WARNING, "推送任务执行失败", e);
+            } finally {
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * 关闭队列，并等待队列中剩余的任务执行完成
+     *
+     * @param timeoutMillis 最大等待时间
+     */
+    public static void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.log(Level.WARNING, "推送队列关闭超时，剩余任务：" + getQueueDepth());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 当前队列中等待执行的任务数量
+    public static int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    // 正在执行任务的工作线程数量
+    public static int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public static long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public static long getCompletedCount() {
+        return completed.get();
+    }
+
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    public static long getCallerRunsCount() {
+        return callerRuns.get();
+    }
+}
@@ -0,0 +1,56 @@
+package net.lingmar.web.italker.push.utils;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按时间递增的Id生成器，格式和UUIDv7一致
+ * 前48位为毫秒时间戳，之后12位为同一毫秒内的序号，其余为随机数；
+ * 字符串形式和普通的UUID一样是36位，可以直接替换uuid2
+ * <p>
+ * 随机的UUID插入时会分散到主键索引的各个位置，
+ * 按时间递增的Id总是追加在索引的末尾，表越大效果越明显
+ * 实体已经有Id时（比如客户端生成的消息Id）保留原有的Id
+ */
+public class TimeOrderedIdGenerator implements IdentifierGenerator {
+    // 上一次生成的时间戳与序号，时间戳左移12位后加上序号
+    private static final AtomicLong last = new AtomicLong();
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) {
+        Serializable id = session.getEntityPersister(null, object).getIdentifier(object, session);
+        if (id != null)
+            return id;
+        return next();
+    }
+
+    /**
+     * 生成一个新的Id
+     *
+     * @return Id
+     */
+    public static String next() {
+        long now = System.currentTimeMillis() << 12;
+        long current;
+        while (true) {
+            long prev = last.get();
+            // 同一毫秒内序号加一，序号用完或者时钟回拨时借用下一毫秒
+            current = now > prev ? now : prev + 1;
+            if (last.compareAndSet(prev, current))
+                break;
+        }
+
+        long timestamp = current >>> 12;
+        long sequence = current & 0xFFF;
+        // 版本号7
+        long msb = (timestamp << 16) | 0x7000L | sequence;
+        // 变体10
+        long lsb = ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        return new UUID(msb, lsb).toString();
+    }
+}